@@ -0,0 +1,39 @@
+package net.jonp.dmtool;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * One of the maps open together, such as the rooms of a dungeon saved in one
+ * file. Only one is shown at a time; see DMTool.switchMap.
+ */
+public class CampaignMap {
+  // Names the map's directory in the save file, and the map in the switcher.
+  final String name;
+  // Replaced by the map's tiles in the save file once saved; only on the event
+  // thread.
+  MapImageSource image;
+
+  // While the map is shown, these are the DM's regions, so they are always
+  // current.
+  final Regions regions;
+
+  // The map's pyramid, holding the tiles read so far, if it has been shown or
+  // prefetched recently; see MapCache. Null if not.
+  ImagePyramid pyramid;
+
+  // The single tile of the image's smallest level, read when the map was
+  // opened to check it could be, until a pyramid is made with it. Null if
+  // there is none.
+  BufferedImage coarsest;
+
+  CampaignMap(final String name, final MapImageSource image, final Regions regions) {
+    this.name = name;
+    this.image = image;
+    this.regions = regions;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -1,20 +1,35 @@
 
 package net.jonp.dmtool;
 
+import java.awt.Dimension;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
+import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import net.jonp.dmtool.dmproto.DMProto;
 
@@ -25,9 +40,46 @@ public class DMTool {
   public static final String SAVE_FILE_EXTENSION = "dmap";
   private static final String SAVE_FILE_FORMAT = "DMTool Map";
 
-  // The same image when presenting; player is cloned from DM when paused.
-  private BufferedImage playerImage;
-  private BufferedImage dmImage;
+  // How long the view must be left alone before the map is drawn at full
+  // quality again.
+  private static final int REFINE_DELAY_MS = 250;
+
+  // The same image when presenting. When paused, player keeps the image it had;
+  // images are never changed after loading, so it is shared, not copied. They
+  // are never decoded whole: they are read as they are drawn, and saved and
+  // sent as they are stored, so they never need encoding again.
+  private MapImageSource playerImage;
+  private MapImageSource dmImage;
+
+  // Pre-scaled, tiled copies of the images above, for drawing, holding the
+  // parts read so far. The player shares the DM's pyramid when paused, since
+  // the pixels are the same.
+  private ImagePyramid playerPyramid;
+  private ImagePyramid dmPyramid;
+
+  // The maps open together, in the order they are switched between, and the
+  // one the DM is on. Only touched on the event dispatch thread.
+  private final List<CampaignMap> maps = new ArrayList<>();
+  private CampaignMap activeMap;
+
+  // The pyramids of the maps shown recently, or prefetched. Tiles read for a
+  // held map that neither view is showing need no repaint. Tiles that cannot
+  // be read are reported, whichever map they are of.
+  private final MapCache mapCache = new MapCache((final CampaignMap map) -> {
+    SwingUtilities.invokeLater(() -> {
+      if (map.pyramid != null && map.pyramid != dmPyramid && map.pyramid != playerPyramid) {
+        return;
+      }
+      repaint();
+    });
+  }, (final CampaignMap map, final IOException e) -> {
+    SwingUtilities.invokeLater(() -> reportReadFailure(map, e));
+  });
+
+  // Whether a failure to read tiles is being shown, so others that come
+  // meanwhile are not stacked on top of it. Only touched on the event dispatch
+  // thread.
+  private boolean reportingReadFailure = false;
 
   private MapWindow playerWindow;
   private MapWindow dmWindow;
@@ -38,10 +90,27 @@ public class DMTool {
   private Point playerOffset = new Point(0, 0);
   private Point dmOffset = new Point(0, 0);
 
-  // The same Regions when presenting; player is cloned from DM when paused.
+  // Running while the DM is zooming. When it fires, both views are repainted at
+  // full quality. Scrolling only draws the edges that come into view, so it
+  // does not need to trade quality for speed.
+  private final Timer refineTimer = new Timer(REFINE_DELAY_MS, (e) -> repaint());
+
+  // The same Regions when presenting. When paused, player shares the DM's
+  // Regions until the DM first changes them; see editRegions.
   private Regions playerRegions = new Regions();
   private Regions dmRegions = new Regions();
 
+  // Counts calls to editRegions, so views can tell when their copy of the
+  // regions is out of date.
+  private long edits = 0;
+
+  // Also shown the player's frames: other displays, and streams. Read on the
+  // player view's render thread. The count goes up with every addition, so the
+  // player view knows to send its current frame even if it has not changed.
+  private final Collection<FrameSink> playerSinks = new CopyOnWriteArrayList<>();
+  private volatile int playerSinksAdded = 0;
+  private int playerDisplays = 1; // Including the Player View window.
+
   private boolean paused = true;
   private File savePath;
   private File directory; // Where the file chooser last was.
@@ -49,8 +118,42 @@ public class DMTool {
   private final Collection<PauseListener> pauseListeners = new ArrayList<>();
   private final Collection<ResumeListener> resumeListeners = new ArrayList<>();
   private final Collection<NewMapListener> newMapListeners = new ArrayList<>();
+  private final Collection<ViewChangeListener> viewChangeListeners = new ArrayList<>();
+
+  // The map being opened, if any. Only touched on the event dispatch thread.
+  private Progress loading;
+
+  // Maps are read here, off the event dispatch thread.
+  private final ExecutorService loader = Executors.newSingleThreadExecutor((r) -> {
+    final Thread t = new Thread(r, "Loader");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // The maps next to the DM's are read ahead here, at the scale they will
+  // first be shown at, so as not to hold up the tiles of the maps in view,
+  // which are read on the pyramids' own thread.
+  private final ExecutorService prefetcher = Executors.newSingleThreadExecutor((r) -> {
+    final Thread t = new Thread(r, "Prefetcher");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // Saves are written here, one at a time and in order, off the event
+  // dispatch thread.
+  private final ExecutorService saver = Executors.newSingleThreadExecutor((r) -> {
+    final Thread t = new Thread(r, "Saver");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // The saves started and not yet ended, and whether to quit once they have.
+  // Only touched on the event dispatch thread.
+  private final List<Progress> saves = new ArrayList<>();
+  private boolean quitting = false;
 
   DMTool() {
+    refineTimer.setRepeats(false);
   }
 
   public File getActiveSave() {
@@ -86,9 +189,66 @@ public class DMTool {
     });
   }
 
+  /**
+   * Runs with only the player view, for a player client following a DM's tool
+   * through a SyncClient. Nothing is ever paused; the server only sends what
+   * the players should see.
+   */
+  void runPlayerOnly() {
+    resume();
+    SwingUtilities.invokeLater(() -> {
+      playerWindow = new MapWindow(DMTool.this, /* isPlayer = */ true);
+      playerWindow.setVisible(true);
+    });
+  }
+
+  // Each of the repaint methods below also tells anyone following the player
+  // view that it may have changed. A view that is not open yet is skipped;
+  // a player client never opens the DM's view.
+
   void repaint() {
-    playerWindow.repaint();
-    dmWindow.repaint();
+    fireViewChanged();
+    if (playerWindow != null) {
+      playerWindow.repaint();
+    }
+    if (dmWindow != null) {
+      dmWindow.repaint();
+    }
+  }
+
+  // Repaints only the parts of both views touched by the changed regions.
+  // While paused the player's regions never change, so only the DM's view is
+  // repainted.
+  void repaint(final Collection<Region> changed) {
+    fireViewChanged();
+    if (playerWindow != null && !paused) {
+      playerWindow.repaint(changed);
+    }
+    if (dmWindow != null) {
+      dmWindow.repaint(changed);
+    }
+  }
+
+  // Repaints both views after the DM's view was scrolled. While paused the
+  // player's view has not moved, so only the DM's view is repainted.
+  void repaintScrolled() {
+    fireViewChanged();
+    if (playerWindow != null && !paused) {
+      playerWindow.repaintScrolled();
+    }
+    if (dmWindow != null) {
+      dmWindow.repaintScrolled();
+    }
+  }
+
+  void addViewChangeListener(final ViewChangeListener listener) {
+    viewChangeListeners.add(listener);
+  }
+
+  private void fireViewChanged() {
+    viewChangeListeners.forEach((final ViewChangeListener listener) -> {
+      listener.onViewChange();
+    });
   }
 
   MapWindow getWindow(final boolean isPlayer) {
@@ -98,13 +258,29 @@ public class DMTool {
     return dmWindow;
   }
 
-  BufferedImage getImage(final boolean isPlayer) {
+  MapImageSource getImage(final boolean isPlayer) {
     if (isPlayer && paused) {
       return playerImage;
     }
     return dmImage;
   }
 
+  /** Returns the size of the image from getImage, or null if there is none. */
+  Dimension getImageSize(final boolean isPlayer) {
+    final MapImageSource img = getImage(isPlayer);
+    if (img == null) {
+      return null;
+    }
+    return new Dimension(img.getWidth(), img.getHeight());
+  }
+
+  ImagePyramid getPyramid(final boolean isPlayer) {
+    if (isPlayer && paused) {
+      return playerPyramid;
+    }
+    return dmPyramid;
+  }
+
   double getScale(final boolean isPlayer) {
     if (isPlayer && paused) {
       return playerScale;
@@ -114,6 +290,7 @@ public class DMTool {
 
   void setScale(final double scale) {
     dmScale = scale;
+    refineTimer.restart();
   }
 
   Point getOffset(final boolean isPlayer) {
@@ -127,6 +304,18 @@ public class DMTool {
     dmOffset = offset;
   }
 
+  /**
+   * Returns how well the map image should be scaled for the given view: quickly
+   * while the DM is zooming it, and as well as possible once the DM stops.
+   * The paused player view never changes, so it is always drawn finely.
+   */
+  ImagePyramid.Quality getQuality(final boolean isPlayer) {
+    if ((isPlayer && paused) || !refineTimer.isRunning()) {
+      return ImagePyramid.Quality.FINE;
+    }
+    return ImagePyramid.Quality.FAST;
+  }
+
   Regions getRegions(final boolean isPlayer) {
     if (isPlayer && paused) {
       return playerRegions;
@@ -134,6 +323,55 @@ public class DMTool {
     return dmRegions;
   }
 
+  /**
+   * Returns the DM's regions, to be changed. Must be called before changing
+   * them or anything in them: while paused, the player shares the DM's regions
+   * until the first change, and this gives the player its own copy first.
+   */
+  Regions editRegions() {
+    edits++;
+    if (paused && playerRegions == dmRegions) {
+      playerRegions = dmRegions.snapshot();
+    }
+    return dmRegions;
+  }
+
+  /**
+   * Returns a number that changes whenever the regions may have been changed
+   * through editRegions.
+   */
+  long getEditCount() {
+    return edits;
+  }
+
+  Collection<FrameSink> getPlayerSinks() {
+    return playerSinks;
+  }
+
+  int getPlayerSinksAdded() {
+    return playerSinksAdded;
+  }
+
+  /** Sends every frame the player view draws to sink as well. */
+  void addPlayerSink(final FrameSink sink) {
+    playerSinks.add(sink);
+    playerSinksAdded++;
+    if (playerWindow != null) {
+      // Give it the current frame now, rather than at the next change.
+      playerWindow.requestFrame();
+    }
+  }
+
+  void removePlayerSink(final FrameSink sink) {
+    playerSinks.remove(sink);
+  }
+
+  /** Opens another window showing the player view. */
+  void openPlayerDisplay() {
+    playerDisplays++;
+    new PlayerDisplay(this, playerDisplays).open();
+  }
+
   boolean isPaused() {
     return paused;
   }
@@ -147,11 +385,11 @@ public class DMTool {
       return;
     }
     paused = true;
-    if (dmImage != null) {
-      playerImage = new BufferedImage(dmImage.getColorModel(), dmImage.copyData(null),
-                                      dmImage.isAlphaPremultiplied(), null);
-    }
-    playerRegions = dmRegions.clone();
+    // Nothing is copied here. The image is never changed, and the regions are
+    // copied by editRegions only if the DM changes them while paused.
+    playerImage = dmImage;
+    playerPyramid = dmPyramid;
+    playerRegions = dmRegions;
     playerScale = dmScale;
     playerOffset = dmOffset;
     firePaused();
@@ -172,7 +410,12 @@ public class DMTool {
       return;
     }
     paused = false;
+    // A pyramid still held by the cache is kept, for switching back to its map.
+    if (playerPyramid != null && playerPyramid != dmPyramid && !mapCache.holds(playerPyramid)) {
+      playerPyramid.dispose();
+    }
     playerImage = null;
+    playerPyramid = null;
     playerRegions = null;
     playerOffset = null;
     fireResumed();
@@ -196,70 +439,336 @@ public class DMTool {
     newMapListeners.add(listener);
   }
 
-  void newMap(final File f)
+  /**
+   * Starts a new map from an image file, on a background thread, in place of
+   * all the open maps. See open; the new map has no regions.
+   */
+  void newMap(final File f, final ProgressListener listener) {
+    load(listener, () -> readImage(f), /* add = */ false);
+  }
+
+  /**
+   * Adds a new map from an image file to the open ones, on a background
+   * thread, and switches to it. It is named after the file, and saved with
+   * the others.
+   */
+  void addMap(final File f, final ProgressListener listener) {
+    load(listener, () -> readImage(f), /* add = */ true);
+  }
+
+  private static Loaded readImage(final File f)
     throws IOException {
-    final BufferedImage img = ImageIO.read(f);
-    System.err.println("Loaded " + img.getWidth() + "x" + img.getHeight() + " image file: " + f);
-    pause();
+    String name = f.getName();
+    if (name.lastIndexOf('.') > 0) {
+      name = name.substring(0, name.lastIndexOf('.'));
+    }
+    // The name is also that of a directory in the save file.
+    name = name.replace('/', '_').replace('\\', '_');
+    return new Loaded(null, Collections.singletonList(
+      new MapData(name, null, EncodedImage.fromFile(f))));
+  }
+
+  /**
+   * Shows a map received from elsewhere, with no regions yet, in place of all
+   * the open maps. Unlike newMap, this does not pause or reset the view.
+   */
+  void showMap(final MapImageSource img) {
     savePath = null;
-    dmImage = img;
-    dmRegions = new Regions();
-    dmScale = 1.0;
+    setMaps(Collections.singletonList(new CampaignMap("1", img, new Regions())));
+    fireNewMap();
+  }
+
+  /** Returns the names of the open maps, in the order they are switched between. */
+  List<String> getMapNames() {
+    final List<String> names = new ArrayList<>();
+    for (final CampaignMap map : maps) {
+      names.add(map.name);
+    }
+    return names;
+  }
+
+  /** Returns the index of the map the DM is on, or -1 if none is open. */
+  int getMapIndex() {
+    return maps.indexOf(activeMap);
+  }
+
+  /**
+   * Shows the DM another of the open maps, pausing the player view first, as
+   * opening a map does. The regions of the map left are kept, and so are the
+   * tiles read for it, for a while, so switching back is instant; so is
+   * switching to the maps next to it, which are read ahead.
+   */
+  void switchMap(final int index) {
+    if (index < 0 || index >= maps.size() || maps.get(index) == activeMap) {
+      return;
+    }
+    pause();
+    activate(maps.get(index));
+    dmScale = 1;
     dmOffset = new Point(0, 0);
     fireNewMap();
   }
 
+  // Reads an image in any format ImageIO knows.
+  static BufferedImage decode(final byte[] encoded)
+    throws IOException {
+    final BufferedImage img = ImageIO.read(new ByteArrayInputStream(encoded));
+    if (img == null) {
+      throw new IOException("Not an image in a known format");
+    }
+    return img;
+  }
+
+  // Replaces the open maps with the given ones, and puts the DM on the first.
+  private void setMaps(final List<CampaignMap> opened) {
+    // The player keeps the old pyramid while paused; it is disposed on resume.
+    mapCache.clear(playerPyramid);
+    maps.clear();
+    maps.addAll(opened);
+    activate(opened.get(0));
+  }
+
+  // Puts the DM on map, and starts reading the maps next to it.
+  private void activate(final CampaignMap map) {
+    activeMap = map;
+    dmImage = map.image;
+    dmRegions = map.regions;
+    dmPyramid = mapCache.use(map);
+    mapCache.trim(dmPyramid, playerPyramid);
+    prefetchNeighbours();
+  }
+
+  // Reads the maps before and after the DM's, the ones it is likely to switch
+  // to next, on the prefetcher thread, unless they are already held. They are
+  // read at the scale that fits them to the DM's view, which is how they are
+  // first shown.
+  private void prefetchNeighbours() {
+    final Dimension view = (dmWindow != null ? dmWindow.getSize() : new Dimension(1024, 768));
+    final int index = getMapIndex();
+    for (final int i : new int[] { index + 1, index - 1 }) {
+      final CampaignMap map = maps.get(Math.floorMod(i, maps.size()));
+      if (map.pyramid != null) {
+        continue;
+      }
+      final ImagePyramid pyramid = mapCache.hold(map);
+      final double scale = Math.min(1.0, Math.min(view.getWidth() / map.image.getWidth(),
+                                                  view.getHeight() / map.image.getHeight()));
+      prefetcher.execute(() -> {
+        pyramid.prefetch(scale);
+        // It now holds more tiles, which may take the cache over budget.
+        SwingUtilities.invokeLater(() -> mapCache.trim(dmPyramid, playerPyramid));
+      });
+    }
+  }
+
   private void fireNewMap() {
     newMapListeners.forEach((final NewMapListener listener) -> {
       listener.onNewMap();
     });
   }
 
-  void save(final File path)
-    throws IOException {
-    if (dmRegions == null || dmImage == null) {
+  /**
+   * Saves the open maps to path on a background thread, so the DM can keep
+   * working. What is saved is the maps as they are now: the regions are
+   * serialized before this returns, and later changes are not included. The file is written
+   * under a temporary name next to path, then moved over it, so path is never
+   * left half-written.
+   *
+   * Once saved, each map is read from its tiles in the file, as if it had just
+   * been opened, so later saves copy them rather than tiling it again.
+   */
+  void save(final File path, final ProgressListener listener) {
+    if (maps.isEmpty()) {
       throw new IllegalStateException("No open map");
     }
 
-    final OutputStream out = new FileOutputStream(path);
-    final ZipOutputStream zip = new ZipOutputStream(out);
+    // The images are never changed after loading, so they are shared, not
+    // copied.
+    final List<CampaignMap> saving = new ArrayList<>(maps);
+    final List<MapData> saved = new ArrayList<>();
+    for (final CampaignMap map : saving) {
+      saved.add(new MapData(map.name, map.regions.serialize(), map.image));
+    }
+    final Progress progress = new Progress(listener);
+    saves.add(progress);
+    if (quitting) {
+      progress.quitPending();
+    }
+    saver.execute(() -> {
+      final long start = System.nanoTime();
+      IOException error = null;
+      try {
+        writeSave(path, saved, progress);
+        System.err.printf("Wrote \"%s\" in %.1fms\n", path, (System.nanoTime() - start) / 1e6);
+        SwingUtilities.invokeLater(() -> readFromSave(path, saving, saved));
+      }
+      catch (final IOException e) {
+        error = e;
+      }
+      catch (final RuntimeException e) {
+        // Still ends the save, or quit would wait for it forever.
+        error = new IOException("Cannot save: " + e, e);
+      }
+      progress.done(error, (e) -> saveDone(progress, e));
+    });
+  }
+
+  // Points each map just saved to path at its tiles there, unless it has been
+  // closed or its image replaced since. A pyramid already made keeps reading
+  // the old image, which is the same.
+  private void readFromSave(final File path, final List<CampaignMap> saving,
+                            final List<MapData> saved) {
+    for (int i = 0; i < saving.size(); i++) {
+      final CampaignMap map = saving.get(i);
+      if (maps.contains(map) && map.image == saved.get(i).image) {
+        map.image =
+          new TileArchive(path, map.name, tileIndex(map.image.getWidth(), map.image.getHeight()));
+      }
+    }
+  }
+
+  // Writes a save file, with each map's image as it is stored.
+  private static void writeSave(final File path, final List<MapData> saved,
+                                final Progress progress)
+    throws IOException {
+    final File tmp =
+      File.createTempFile(path.getName() + ".", ".tmp", path.getAbsoluteFile().getParentFile());
+    boolean moved = false;
     try {
-      zip.setLevel(9);
+      final FileOutputStream out = new FileOutputStream(tmp);
+      try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out))) {
+        zip.setLevel(9);
 
-      // Version 1 will fail to load if Fog-of-War is used on a region.
-      // Version 2 supports Fog-of-War (region state FOGGED).
-      final ZipEntry version = new ZipEntry("version");
-      zip.putNextEntry(version);
-      zip.write(DMProto.Version.newBuilder().setFormat(SAVE_FILE_FORMAT).setVersion(2).build()
-        .toByteArray());
+        // Version 1 will fail to load if Fog-of-War is used on a region.
+        // Version 2 supports Fog-of-War (region state FOGGED).
+        // Version 3 holds more than one map. A single map is still written as
+        // version 2, so older versions of the tool can open it; they ignore its
+        // tiles, and read map.png.
+        final ZipEntry version = new ZipEntry("version");
+        zip.putNextEntry(version);
+        zip.write(DMProto.Version.newBuilder().setFormat(SAVE_FILE_FORMAT)
+          .setVersion(saved.size() > 1 ? 3 : 2).build().toByteArray());
 
-      final ZipEntry metadata = new ZipEntry("metadata");
-      zip.putNextEntry(metadata);
-      zip.write(DMProto.Metadata.newBuilder().setContents("1").build().toByteArray());
+        final DMProto.Metadata.Builder metadata = DMProto.Metadata.newBuilder();
+        final List<DMProto.TileIndex> indices = new ArrayList<>();
+        int total = 0;
+        for (final MapData map : saved) {
+          final DMProto.TileIndex index = tileIndex(map.image.getWidth(), map.image.getHeight());
+          metadata.addContents(map.name).putTiles(map.name, index);
+          indices.add(index);
+          total += countTiles(index);
+        }
+        zip.putNextEntry(new ZipEntry("metadata"));
+        zip.write(metadata.build().toByteArray());
 
-      final ZipEntry one = new ZipEntry("1/");
-      zip.putNextEntry(one);
+        int written = 0;
+        for (int i = 0; i < saved.size(); i++) {
+          final MapData map = saved.get(i);
+          zip.setLevel(9);
+          zip.putNextEntry(new ZipEntry(map.name + "/"));
+          zip.putNextEntry(new ZipEntry(map.name + "/data.pb"));
+          zip.write(map.data.toByteArray());
 
-      final ZipEntry pb = new ZipEntry("1/data.pb");
-      zip.putNextEntry(pb);
-      zip.write(dmRegions.serialize().toByteArray());
+          // Don't bother compressing the map or its tiles, since they are
+          // already compressed. The map keeps the name map.png whatever its
+          // format; it is read by ImageIO, which goes by the contents.
+          zip.setLevel(0);
+          zip.putNextEntry(new ZipEntry(TileArchive.imageName(map.name)));
+          map.image.writeImage(zip);
+          written = writeTiles(zip, map.name, indices.get(i), map.image, progress, written, total);
+        }
+        zip.finish();
+        zip.flush();
+        // All of it must be on disk before it replaces the old save.
+        out.getFD().sync();
+      }
 
-      // Don't bother compressing the map, since png is already compressed.
-      zip.setLevel(0);
-      final ZipEntry map = new ZipEntry("1/map.png");
-      zip.putNextEntry(map);
-      ImageIO.write(dmImage, "png", zip);
-      zip.finish();
+      try {
+        Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (final AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      moved = true;
     }
     finally {
-      zip.close();
+      if (!moved) {
+        tmp.delete();
+      }
     }
   }
 
-  void open(final File path)
+  // Writes every tile of img, as the tiles of the map in the given directory.
+  // Tiles from a tiled save are copied as they are; any other image is tiled
+  // by TileWriter.
+  // Progress counts tiles: written have been already, out of total in the
+  // save. Returns how many have been once these are.
+  private static int writeTiles(final ZipOutputStream zip, final String contents,
+                                final DMProto.TileIndex index, final MapImageSource img,
+                                final Progress progress, int written, final int total)
     throws IOException {
-    final ZipFile zip = new ZipFile(path);
+    if (!(img instanceof TileArchive)) {
+      return new TileWriter(zip, contents, index, progress, written, total).write(img);
+    }
+    final TileArchive archive = (TileArchive)img;
+    final int tileSize = index.getTileSize();
     try {
+      for (int level = 0; level < index.getLevelCount(); level++) {
+        final int columns = (index.getLevel(level).getWidth() + tileSize - 1) / tileSize;
+        final int rows = (index.getLevel(level).getHeight() + tileSize - 1) / tileSize;
+        for (int row = 0; row < rows; row++) {
+          for (int column = 0; column < columns; column++) {
+            if (progress.isCancelled()) {
+              throw new InterruptedIOException("Cancelled");
+            }
+            zip.putNextEntry(new ZipEntry(TileArchive.tileName(contents, level, row, column)));
+            archive.copyTile(level, row, column, zip);
+            written++;
+            progress.report((int)(written * 100L / total));
+          }
+        }
+      }
+      return written;
+    }
+    finally {
+      archive.release();
+    }
+  }
+
+  // Returns how a width by height map is split into tiles.
+  private static DMProto.TileIndex tileIndex(final int width, final int height) {
+    final DMProto.TileIndex.Builder index =
+      DMProto.TileIndex.newBuilder().setTileSize(ImagePyramid.TILE_SIZE);
+    for (final Dimension size : ImagePyramid.getLevelSizes(width, height)) {
+      index.addLevel(DMProto.TileLevel.newBuilder().setWidth(size.width).setHeight(size.height));
+    }
+    return index.build();
+  }
+
+  private static int countTiles(final DMProto.TileIndex index) {
+    final int tileSize = index.getTileSize();
+    int count = 0;
+    for (final DMProto.TileLevel level : index.getLevelList()) {
+      count += ((level.getWidth() + tileSize - 1) / tileSize) *
+               ((level.getHeight() + tileSize - 1) / tileSize);
+    }
+    return count;
+  }
+
+  /**
+   * Opens a save file on a background thread, in place of all the open maps,
+   * then shows its first map, pausing the player view first. Only the regions
+   * and the size of each image are read here; the images are read as they are
+   * drawn. If the load fails or is cancelled, the maps that were open stay.
+   */
+  void open(final File path, final ProgressListener listener) {
+    load(listener, () -> readSave(path), /* add = */ false);
+  }
+
+  private static Loaded readSave(final File path)
+    throws IOException {
+    try (ZipFile zip = new ZipFile(path)) {
       ZipEntry entry = zip.getEntry("version");
       if (entry == null) {
         throw new IOException("Not a DMTool save file: No version entry");
@@ -268,8 +777,8 @@ public class DMTool {
       if (!version.getFormat().equals(SAVE_FILE_FORMAT)) {
         throw new IOException("Not a DMTool saved map");
       }
-      if (version.getVersion() != 1 && version.getVersion() != 2) {
-        // Version 1 is forward-compatible with Version 2.
+      if (version.getVersion() < 1 || version.getVersion() > 3) {
+        // Each version is forward-compatible with the next.
         throw new IOException("Cannot parse save file: Of unsupported version " +
                               version.getVersion());
       }
@@ -279,38 +788,180 @@ public class DMTool {
         throw new IOException("Bad save file: No metadata entry");
       }
       final DMProto.Metadata metadata = DMProto.Metadata.parseFrom(zip.getInputStream(entry));
+      if (metadata.getContentsCount() == 0) {
+        throw new IOException("Bad save file: No maps");
+      }
 
-      entry = zip.getEntry(metadata.getContents() + "/data.pb");
-      if (entry == null) {
-        throw new IOException("Bad save file: No \"data.pb\" entry for map \"" +
-                              metadata.getContents() + "\"");
+      final List<MapData> read = new ArrayList<>();
+      for (final String contents : metadata.getContentsList()) {
+        entry = zip.getEntry(contents + "/data.pb");
+        if (entry == null) {
+          throw new IOException("Bad save file: No \"data.pb\" entry for map \"" + contents +
+                                "\"");
+        }
+        final DMProto.Map map = DMProto.Map.parseFrom(zip.getInputStream(entry));
+
+        entry = zip.getEntry(TileArchive.imageName(contents));
+        if (entry == null) {
+          throw new IOException("Bad save file: No \"map.png\" entry for map \"" + contents +
+                                "\"");
+        }
+
+        // A tiled map is read from its tiles, and any other from map.png. Any
+        // version may have tiles.
+        final DMProto.TileIndex index = metadata.getTilesOrDefault(contents, null);
+        if (index != null) {
+          checkTileIndex(contents, index);
+          read.add(new MapData(contents, map, new TileArchive(path, contents, index)));
+        }
+        else {
+          read.add(new MapData(contents, map, EncodedImage.fromSave(path, entry.getName())));
+        }
       }
-      final DMProto.Map map = DMProto.Map.parseFrom(zip.getInputStream(entry));
+      return new Loaded(path, read);
+    }
+  }
 
-      entry = zip.getEntry(metadata.getContents() + "/map.png");
-      if (entry == null) {
-        throw new IOException("Bad save file: No \"map.png\" entry for map \"" +
-                              metadata.getContents() + "\"");
+  // Checks that the tiles of the given map are laid out the way ImagePyramid
+  // expects.
+  private static void checkTileIndex(final String contents, final DMProto.TileIndex index)
+    throws IOException {
+    if (index.getTileSize() != ImagePyramid.TILE_SIZE || index.getLevelCount() == 0) {
+      throw new IOException("Bad save file: Unsupported tiles for map \"" + contents + "\"");
+    }
+    final Dimension[] sizes =
+      ImagePyramid.getLevelSizes(index.getLevel(0).getWidth(), index.getLevel(0).getHeight());
+    if (sizes.length != index.getLevelCount()) {
+      throw new IOException("Bad save file: Unsupported tiles for map \"" + contents + "\"");
+    }
+    for (int i = 0; i < sizes.length; i++) {
+      if (sizes[i].width != index.getLevel(i).getWidth() ||
+          sizes[i].height != index.getLevel(i).getHeight()) {
+        throw new IOException("Bad save file: Unsupported tiles for map \"" + contents + "\"");
       }
-      final BufferedImage img = ImageIO.read(zip.getInputStream(entry));
+    }
+  }
 
-      // If we get here, everything worked.
-      pause();
-      savePath = path;
-      final Regions rs = new Regions();
-      rs.load(map);
-      assignMissingAvatarIndices(rs);
-      dmRegions = rs;
-      dmImage = img;
-      dmScale = 1;
-      dmOffset = new Point(0, 0);
-      fireNewMap();
+  /** Returns whether a map is being opened. */
+  boolean isLoading() {
+    return loading != null;
+  }
+
+  // Runs read on the loader thread, then shows what it read, adding it to the
+  // open maps or in place of them. Only one load can run at a time.
+  private void load(final ProgressListener listener, final Reader read, final boolean add) {
+    if (loading != null) {
+      throw new IllegalStateException("Already opening a map");
+    }
+    final Progress progress = new Progress(listener);
+    loading = progress;
+    loader.execute(() -> {
+      final long start = System.nanoTime();
+      try {
+        final Loaded loaded = read.read();
+        // Nothing is shown until the smallest level of every map has been
+        // decoded, so a map that cannot be read leaves the open ones as they
+        // were.
+        for (int i = 0; i < loaded.maps.size() && !progress.isCancelled(); i++) {
+          final MapData map = loaded.maps.get(i);
+          map.coarsest = readCoarsest(map);
+          progress.report(100 * (i + 1) / loaded.maps.size());
+        }
+        System.err.printf("Read %d maps in %.1fms\n", loaded.maps.size(),
+                          (System.nanoTime() - start) / 1e6);
+        SwingUtilities.invokeLater(() -> show(progress, loaded, add));
+      }
+      catch (final IOException e) {
+        SwingUtilities.invokeLater(() -> loading = null);
+        progress.done(e);
+      }
+    });
+  }
+
+  // Reads the single tile of the smallest level of map's image. For an image
+  // decoded a region at a time, that decodes all of it, at a fraction of its
+  // size; for one saved as tiles, it checks the tiles are there.
+  private static BufferedImage readCoarsest(final MapData map)
+    throws IOException {
+    final int smallest =
+      ImagePyramid.getLevelSizes(map.image.getWidth(), map.image.getHeight()).length - 1;
+    try {
+      return map.image.readTiles(smallest, new Rectangle(0, 0, 1, 1))[0][0];
+    }
+    catch (final IOException e) {
+      throw new IOException("Map \"" + map.name + "\" cannot be read: " + e.getMessage(), e);
     }
     finally {
-      zip.close();
+      map.image.release();
+    }
+  }
+
+  // Tells the DM that part of map could not be read, and offers to try again.
+  private void reportReadFailure(final CampaignMap map, final IOException e) {
+    if (reportingReadFailure || map.pyramid == null) {
+      return;
+    }
+    reportingReadFailure = true;
+    final Object[] options = { "Retry", "Ignore" };
+    final int choice =
+      JOptionPane.showOptionDialog(dmWindow, "Part of map \"" + map.name +
+                                   "\" could not be read: " + e.getMessage(), "Read Error",
+                                   JOptionPane.DEFAULT_OPTION, JOptionPane.ERROR_MESSAGE, null,
+                                   options, options[0]);
+    reportingReadFailure = false;
+    // Also tries again any that failed while the dialog was up.
+    if (choice == 0 && map.pyramid != null) {
+      map.pyramid.retry();
+      repaint();
     }
   }
 
+  // Shows the first of the maps that have been read, unless loading them was
+  // cancelled meanwhile.
+  private void show(final Progress progress, final Loaded loaded, final boolean add) {
+    loading = null;
+    if (progress.isCancelled()) {
+      progress.done(new InterruptedIOException("Cancelled"));
+      return;
+    }
+    pause();
+    final List<CampaignMap> read = new ArrayList<>();
+    for (final MapData data : loaded.maps) {
+      final Regions rs = new Regions();
+      if (data.data != null) {
+        rs.load(data.data);
+        assignMissingAvatarIndices(rs);
+      }
+      final CampaignMap map =
+        new CampaignMap(add ? uniqueName(data.name) : data.name, data.image, rs);
+      map.coarsest = data.coarsest;
+      read.add(map);
+    }
+    if (add) {
+      maps.addAll(read);
+      activate(read.get(0));
+    }
+    else {
+      savePath = loaded.path;
+      setMaps(read);
+    }
+    dmScale = 1;
+    dmOffset = new Point(0, 0);
+    fireNewMap();
+    progress.done(null);
+  }
+
+  // Returns name, or name with a number after it if an open map already has
+  // it, since maps are saved in directories by name.
+  private String uniqueName(final String name) {
+    final List<String> names = getMapNames();
+    String unique = name;
+    for (int i = 2; names.contains(unique); i++) {
+      unique = name + " (" + i + ")";
+    }
+    return unique;
+  }
+
   private void assignMissingAvatarIndices(final Regions rs) {
     // Avatar indices were added as a backwards-compatible extension to the v1
     // save file format. If the file doesn't have them, assign indices to the
@@ -327,9 +978,32 @@ public class DMTool {
     }
   }
 
+  /**
+   * Quits, once any saves already started have finished, rather than losing
+   * them. Meanwhile their progress is shown, and the tool keeps running; if one
+   * fails or is cancelled, it stays open, so the maps can be saved again.
+   */
   void quit() {
     // TODO: Offer to save if necessary
-    System.exit(0);
+    if (saves.isEmpty()) {
+      System.exit(0);
+    }
+    quitting = true;
+    for (final Progress progress : saves) {
+      progress.quitPending();
+    }
+  }
+
+  // Called once a save has ended, and its listener told. Quits if quit was
+  // waiting for it, and it was the last.
+  private void saveDone(final Progress progress, final IOException error) {
+    saves.remove(progress);
+    if (error != null) {
+      quitting = false;
+    }
+    if (quitting && saves.isEmpty()) {
+      System.exit(0);
+    }
   }
 
   public static interface PauseListener {
@@ -343,4 +1017,110 @@ public class DMTool {
   public static interface NewMapListener {
     void onNewMap();
   }
+
+  public static interface ViewChangeListener {
+    void onViewChange();
+  }
+
+  /**
+   * Hears how work in the background, such as a save, is going. Always called
+   * on the event dispatch thread.
+   */
+  public static interface ProgressListener {
+    /** Reports how much is done, out of 100. Returns false to cancel. */
+    boolean onProgress(int percent);
+
+    /**
+     * Called once, at the end. error is null if all went well, and an
+     * InterruptedIOException if it was cancelled.
+     */
+    void onDone(IOException error);
+
+    /**
+     * Called if the tool is to quit once the work is done, so how it is going
+     * should be shown at once.
+     */
+    void onQuitPending();
+  }
+
+  // What a file holds, before anything is decoded. path is null for a new map
+  // from an image file.
+  private static class Loaded {
+    final File path;
+    final List<MapData> maps;
+
+    Loaded(final File path, final List<MapData> maps) {
+      this.path = path;
+      this.maps = maps;
+    }
+  }
+
+  // One map, as it is read from a file or written to one. data is null for a
+  // new map from an image file.
+  private static class MapData {
+    final String name;
+    final DMProto.Map data;
+    final MapImageSource image;
+
+    // Read on the loader thread, once it is known the image can be; see load.
+    BufferedImage coarsest;
+
+    MapData(final String name, final DMProto.Map data, final MapImageSource image) {
+      this.name = name;
+      this.data = data;
+      this.image = image;
+    }
+  }
+
+  private static interface Reader {
+    Loaded read()
+      throws IOException;
+  }
+
+  // Passes progress from a background thread to a ProgressListener, and
+  // cancellation back.
+  static class Progress {
+    private final ProgressListener listener;
+    private volatile boolean cancelled = false;
+    private int reported = -1; // Only used by the thread writing the save.
+
+    Progress(final ProgressListener listener) {
+      this.listener = listener;
+    }
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    // Only passes on changes, so the event queue is not flooded.
+    void report(final int percent) {
+      if (percent == reported) {
+        return;
+      }
+      reported = percent;
+      SwingUtilities.invokeLater(() -> {
+        if (!listener.onProgress(percent)) {
+          cancelled = true;
+        }
+      });
+    }
+
+    void done(final IOException error) {
+      SwingUtilities.invokeLater(() -> listener.onDone(error));
+    }
+
+    // As done, then passes error to then, on the event dispatch thread once
+    // the listener has been told.
+    void done(final IOException error, final Consumer<IOException> then) {
+      SwingUtilities.invokeLater(() -> {
+        listener.onDone(error);
+        then.accept(error);
+      });
+    }
+
+    // Only on the event dispatch thread.
+    void quitPending() {
+      listener.onQuitPending();
+    }
+  }
 }
@@ -0,0 +1,259 @@
+package net.jonp.dmtool;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A map image in any format ImageIO can read, decoded a region at a time. Each
+ * level of the pyramid is read from the full image with subsampling, so a
+ * zoomed-out view never needs the full-size pixels. Levels after the first are
+ * read at twice their size and then halved, so that they are averaged the way
+ * built levels are, rather than aliased.
+ *
+ * An image in a save file stays there, and the file is only held open while
+ * reading, so a save can be written over it, as long as the image is written
+ * into it again. Any other image is held in memory, still compressed: one
+ * opened from a file of its own is copied, so that it can still be drawn and
+ * saved if the file is changed or deleted while it is open.
+ */
+public class EncodedImage
+  implements MapImageSource {
+  // How much may be decoded at once, beyond the tiles wanted. Reading any part
+  // of a row means decoding all of it, and, for most formats, every row above
+  // it as well, so nearby rows cost little extra to read.
+  private static final long MAX_READ_BYTES = 64L * 1024 * 1024;
+
+  // Where the image is: bytes, or if that is null, entry in the save file.
+  private final File file;
+  private final String entry;
+  private final byte[] bytes;
+  private final int width, height;
+  private final String formatName;
+
+  // The save file the image is in, between the reads of one batch. Guarded by
+  // this.
+  private ZipFile zip;
+
+  private EncodedImage(final File file, final String entry, final byte[] bytes)
+    throws IOException {
+    this.file = file;
+    this.entry = entry;
+    this.bytes = bytes;
+    try (ImageInputStream in = open()) {
+      final ImageReader reader = getReader(in);
+      try {
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        formatName = reader.getFormatName();
+      }
+      finally {
+        reader.dispose();
+      }
+    }
+    finally {
+      release();
+    }
+  }
+
+  /** Returns the image in the given file, copied into memory. */
+  public static EncodedImage fromFile(final File file)
+    throws IOException {
+    return new EncodedImage(null, null, Files.readAllBytes(file.toPath()));
+  }
+
+  /** Returns the image in the named entry of a save file. */
+  public static EncodedImage fromSave(final File save, final String entry)
+    throws IOException {
+    return new EncodedImage(save, entry, null);
+  }
+
+  /** Returns an image held in memory, such as one sent by a DM's tool. */
+  public static EncodedImage fromBytes(final byte[] bytes)
+    throws IOException {
+    return new EncodedImage(null, null, bytes);
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the name of the image's format, as ImageIO knows it, such as "png". */
+  public String getFormatName() {
+    return formatName;
+  }
+
+  private synchronized ImageInputStream open()
+    throws IOException {
+    if (bytes != null) {
+      return ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+    }
+    return ImageIO.createImageInputStream(openEntry());
+  }
+
+  // Must hold this.
+  private InputStream openEntry()
+    throws IOException {
+    if (zip == null) {
+      zip = new ZipFile(file);
+    }
+    final ZipEntry e = zip.getEntry(entry);
+    if (e == null) {
+      throw new IOException("Bad save file: No \"" + entry + "\" entry");
+    }
+    return zip.getInputStream(e);
+  }
+
+  private static ImageReader getReader(final ImageInputStream in)
+    throws IOException {
+    final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+    if (!readers.hasNext()) {
+      throw new IOException("Not an image in a known format");
+    }
+    final ImageReader reader = readers.next();
+    reader.setInput(in, true, true);
+    return reader;
+  }
+
+  @Override
+  public synchronized BufferedImage[][] readTiles(final int level, final Rectangle range)
+    throws IOException {
+    final int tileSize = ImagePyramid.TILE_SIZE;
+    final Dimension size = ImagePyramid.getLevelSizes(width, height)[level];
+
+    // The range in level pixels, and then in full-size ones.
+    final int x = range.x * tileSize;
+    final int y = range.y * tileSize;
+    final int w = Math.min(range.width * tileSize, size.width - x);
+    final int h = Math.min(range.height * tileSize, size.height - y);
+    final Rectangle source = new Rectangle(x << level, y << level,
+                                           Math.min(w << level, width - (x << level)),
+                                           Math.min(h << level, height - (y << level)));
+
+    BufferedImage band;
+    try (ImageInputStream in = open()) {
+      final ImageReader reader = getReader(in);
+      try {
+        final ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(source);
+        if (level > 1) {
+          final int step = 1 << (level - 1);
+          param.setSourceSubsampling(step, step, 0, 0);
+        }
+        band = reader.read(0, param);
+      }
+      finally {
+        reader.dispose();
+      }
+    }
+    if (level > 0) {
+      band = ImagePyramid.halve(band);
+    }
+
+    final BufferedImage[][] tiles = new BufferedImage[range.height][range.width];
+    if (range.width == 1 && range.height == 1) {
+      tiles[0][0] = band;
+      return tiles;
+    }
+    // Copy each tile out, so each can be dropped from the cache on its own.
+    for (int row = 0; row < range.height; row++) {
+      for (int column = 0; column < range.width; column++) {
+        final BufferedImage tile =
+          band.getSubimage(column * tileSize, row * tileSize,
+                           Math.min(tileSize, band.getWidth() - column * tileSize),
+                           Math.min(tileSize, band.getHeight() - row * tileSize));
+        final WritableRaster raster =
+          band.getRaster().createCompatibleWritableRaster(tile.getWidth(), tile.getHeight());
+        tile.copyData(raster);
+        tiles[row][column] =
+          new BufferedImage(band.getColorModel(), raster, band.isAlphaPremultiplied(), null);
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Reads whole rows of tiles, and as many more as fit MAX_READ_BYTES: first
+   * those above the ones wanted, which are decoded anyway, then those below.
+   */
+  @Override
+  public Rectangle getReadRange(final int level, final Rectangle wanted) {
+    final int tileSize = ImagePyramid.TILE_SIZE;
+    final Dimension size = ImagePyramid.getLevelSizes(width, height)[level];
+    final int columns = (size.width + tileSize - 1) / tileSize;
+    final int rows = (size.height + tileSize - 1) / tileSize;
+
+    // Decoded at twice the size, for all levels but the first.
+    final long rowBytes = 4L * size.width * tileSize * (level == 0 ? 1 : 4);
+    int extra = (int)Math.min(rows, Math.max(0, MAX_READ_BYTES / rowBytes - wanted.height));
+    final int above = Math.min(extra, wanted.y);
+    extra -= above;
+    final int below = Math.min(extra, rows - (wanted.y + wanted.height));
+    return new Rectangle(0, wanted.y - above, columns, above + wanted.height + below);
+  }
+
+  /** Returns the image as it is stored. It must not be changed. */
+  public synchronized byte[] getBytes()
+    throws IOException {
+    if (bytes != null) {
+      return bytes;
+    }
+    try (InputStream in = openEntry()) {
+      return in.readAllBytes();
+    }
+    finally {
+      release();
+    }
+  }
+
+  @Override
+  public synchronized void writeImage(final OutputStream out)
+    throws IOException {
+    if (bytes != null) {
+      out.write(bytes);
+    }
+    else {
+      try (InputStream in = openEntry()) {
+        in.transferTo(out);
+      }
+      finally {
+        release();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void release() {
+    if (zip == null) {
+      return;
+    }
+    try {
+      zip.close();
+    }
+    catch (final IOException e) {
+      System.err.println("Failed to close \"" + file + "\": " + e);
+    }
+    zip = null;
+  }
+}
@@ -0,0 +1,69 @@
+package net.jonp.dmtool;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Full-window ARGB buffers that are kept from one frame to the next, so that
+ * painting only allocates when the window changes size.
+ *
+ * Buffers are handed back with whatever was drawn into them last frame; callers
+ * are expected to overwrite everything they use.
+ */
+public class FrameBufferPool {
+  private final Map<String, BufferedImage> buffers = new HashMap<>();
+
+  private long frames = 0;
+  private long allocations = 0;
+  private long allocatedBytes = 0;
+  private long frameAllocatedBytes = 0;
+
+  /**
+   * Returns the buffer for the given name, re-allocating it if it does not match
+   * the requested size.
+   */
+  public BufferedImage get(final String name, final int width, final int height) {
+    BufferedImage img = buffers.get(name);
+    if (img == null || img.getWidth() != width || img.getHeight() != height) {
+      img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+      buffers.put(name, img);
+      final long bytes = 4L * width * height;
+      allocations++;
+      allocatedBytes += bytes;
+      frameAllocatedBytes += bytes;
+    }
+    return img;
+  }
+
+  /**
+   * Marks the end of a frame, returning the number of bytes allocated by the
+   * pool during that frame.
+   */
+  public long endFrame() {
+    frames++;
+    final long bytes = frameAllocatedBytes;
+    frameAllocatedBytes = 0;
+    return bytes;
+  }
+
+  public long getFrames() {
+    return frames;
+  }
+
+  public long getAllocations() {
+    return allocations;
+  }
+
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /** Average bytes allocated per frame since the pool was created. */
+  public double getAverageBytesPerFrame() {
+    if (frames == 0) {
+      return 0;
+    }
+    return (double)allocatedBytes / frames;
+  }
+}
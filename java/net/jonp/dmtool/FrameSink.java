@@ -0,0 +1,17 @@
+package net.jonp.dmtool;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives the frames a view composes, as another way to show them than the
+ * view's own window.
+ */
+public interface FrameSink {
+  /**
+   * Called on the view's render thread whenever the frame has changed, and
+   * with the current frame soon after the sink is added. The frame is reused
+   * once this returns, so anything kept must be copied, and this must not
+   * block.
+   */
+  void offer(BufferedImage frame);
+}
@@ -0,0 +1,200 @@
+package net.jonp.dmtool;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Pre-rasterized text for avatars: each symbol or label, at each pixel size and
+ * color, is laid out and drawn once into a small sprite, which is then just
+ * copied into the frame wherever it is needed. Also remembers which font size
+ * fits a symbol into a box of a given size, so that search only runs once.
+ *
+ * Sprites are evicted least recently used first once they take more than
+ * MAX_BYTES. Not thread-safe; each renderer keeps its own.
+ */
+public class GlyphAtlas {
+  private static final long MAX_BYTES = 32L * 1024 * 1024;
+  private static final int MAX_FITS = 4096;
+
+  // Matches the default Graphics2D of a BufferedImage: no antialiasing or
+  // fractional metrics, so sprites look just like drawString.
+  private static final FontRenderContext FRC = new FontRenderContext(null, false, false);
+
+  /** A string rendered at one size and color, with the metrics to place it. */
+  public static class Glyph {
+    final BufferedImage image; // Null if nothing is drawn, as for a space.
+    final int dx, dy; // Where the image goes relative to the drawString point.
+    final double width; // Of the string's bounds, for centering.
+    final double height; // Of the line.
+    final double descent;
+    final double space; // Width of a space in the same font.
+
+    Glyph(final BufferedImage image, final int dx, final int dy, final double width,
+          final double height, final double descent, final double space) {
+      this.image = image;
+      this.dx = dx;
+      this.dy = dy;
+      this.width = width;
+      this.height = height;
+      this.descent = descent;
+      this.space = space;
+    }
+
+    /** Draws the string as g.drawString(s, x, y) would. */
+    public void draw(final Graphics2D g, final int x, final int y) {
+      if (image != null) {
+        g.drawImage(image, x + dx, y + dy, null);
+      }
+    }
+
+    long getBytes() {
+      return (image == null) ? 0 : 4L * image.getWidth() * image.getHeight();
+    }
+  }
+
+  private static class Key {
+    final String text;
+    final int width; // Font size for sprites, box width for fits.
+    final int height; // Color for sprites, box height for fits.
+
+    Key(final String text, final int width, final int height) {
+      this.text = text;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key k = (Key)o;
+      return width == k.width && height == k.height && text.equals(k.text);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(text, width, height);
+    }
+  }
+
+  // Both in access order, so the first entry is the least recently used.
+  private final LinkedHashMap<Key, Glyph> glyphs = new LinkedHashMap<>(64, 0.75f, true);
+  private final Map<Key, Integer> fits = new LinkedHashMap<Key, Integer>(64, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Key, Integer> eldest) {
+      return size() > MAX_FITS;
+    }
+  };
+  private long bytes = 0;
+
+  /**
+   * Returns the largest font size at which symbol fits in a box of the given
+   * size, or 1 if none do.
+   */
+  public int fitFontSize(final String symbol, final int width, final int height) {
+    final Key key = new Key(symbol, width, height);
+    final Integer known = fits.get(key);
+    if (known != null) {
+      return known;
+    }
+
+    int trySize = Math.min(width, height);
+    int lastChange = 0;
+    Integer fontSize = null;
+    while (trySize > 1) {
+      final Rectangle2D bounds = new Font(null, 0, trySize).getStringBounds(symbol, FRC);
+      if (bounds.getWidth() > width || bounds.getHeight() > height) {
+        // Too big, try the next size down. Could do a full binary search now
+        // that we know what region to look in, but it only runs once per size.
+        trySize--;
+        lastChange = -1;
+        continue;
+      }
+      if (bounds.getWidth() < width && bounds.getHeight() < height) {
+        // Too small. Unless we just shrunk to this size because it was too
+        // big, double the size (makes for a faster search).
+        if (lastChange == -1) {
+          fontSize = trySize;
+          break;
+        }
+        trySize *= 2;
+        lastChange = 1;
+        continue;
+      }
+
+      // One dimension must be equal, so don't change any more.
+      fontSize = trySize;
+      break;
+    }
+    if (fontSize == null) {
+      // If unable to choose a size, just use 1.
+      fontSize = 1;
+    }
+    fits.put(key, fontSize);
+    return fontSize;
+  }
+
+  /** Returns text rendered at the given font size and color. */
+  public Glyph get(final String text, final int fontSize, final Color color) {
+    final Key key = new Key(text, fontSize, color.getRGB());
+    Glyph glyph = glyphs.get(key);
+    if (glyph == null) {
+      glyph = rasterize(text, fontSize, color);
+      glyphs.put(key, glyph);
+      bytes += glyph.getBytes();
+      evict();
+    }
+    return glyph;
+  }
+
+  private static Glyph rasterize(final String text, final int fontSize, final Color color) {
+    final Font font = new Font(null, 0, fontSize);
+    final Rectangle2D bounds = font.getStringBounds(text, FRC);
+    final LineMetrics lineMetrics = font.getLineMetrics(text, FRC);
+    final double space = font.getStringBounds(" ", FRC).getWidth();
+
+    // Exactly the pixels drawString would touch, relative to its origin.
+    final Rectangle pixels = font.createGlyphVector(FRC, text).getPixelBounds(FRC, 0, 0);
+    BufferedImage image = null;
+    if (!pixels.isEmpty()) {
+      image = new BufferedImage(pixels.width, pixels.height, BufferedImage.TYPE_INT_ARGB);
+      final Graphics2D g = image.createGraphics();
+      g.setFont(font);
+      g.setColor(color);
+      g.drawString(text, -pixels.x, -pixels.y);
+      g.dispose();
+    }
+    return new Glyph(image, pixels.x, pixels.y, bounds.getWidth(), lineMetrics.getHeight(),
+                     lineMetrics.getDescent(), space);
+  }
+
+  private void evict() {
+    final Iterator<Glyph> it = glyphs.values().iterator();
+    // Always keep the newest, however large.
+    while (bytes > MAX_BYTES && glyphs.size() > 1) {
+      bytes -= it.next().getBytes();
+      it.remove();
+    }
+  }
+
+  public int getGlyphCount() {
+    return glyphs.size();
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+}
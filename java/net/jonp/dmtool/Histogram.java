@@ -0,0 +1,83 @@
+package net.jonp.dmtool;
+
+/**
+ * A fixed-size histogram of non-negative values, such as durations in
+ * nanoseconds or sizes in bytes, for reporting percentiles without keeping every
+ * sample.
+ *
+ * Buckets are spaced logarithmically, four to each power of two, so a reported
+ * percentile is at most about 19% above the true value. The maximum is exact.
+ */
+public class Histogram {
+  private static final int SUB_BUCKETS = 4;
+  private static final int BUCKETS = 64 * SUB_BUCKETS + 1;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count = 0;
+  private long sum = 0;
+  private long max = 0;
+
+  private static int bucketFor(final long value) {
+    if (value <= 1) {
+      return 0;
+    }
+    final double log2 = Math.log(value) / Math.log(2);
+    return (int)Math.min(BUCKETS - 1, 1 + (long)Math.floor(log2 * SUB_BUCKETS));
+  }
+
+  // Every value in the bucket is below this.
+  private static long upperBound(final int bucket) {
+    return (long)Math.ceil(Math.pow(2, (double)bucket / SUB_BUCKETS));
+  }
+
+  public synchronized void record(final long value) {
+    final long v = Math.max(0, value);
+    counts[bucketFor(v)]++;
+    count++;
+    sum += v;
+    max = Math.max(max, v);
+  }
+
+  public synchronized void reset() {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = 0;
+    }
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  public synchronized double getMean() {
+    if (count == 0) {
+      return 0;
+    }
+    return (double)sum / count;
+  }
+
+  /**
+   * Returns a value that at least the given fraction (0 to 1) of the samples
+   * are no larger than, or 0 if there are no samples.
+   */
+  public synchronized long getPercentile(final double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long)Math.ceil(fraction * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return max;
+  }
+}
@@ -0,0 +1,662 @@
+package net.jonp.dmtool;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A mip-mapped copy of a map image, split into tiles, so that drawing a frame
+ * only touches the tiles in view, at close to the resolution they are shown at.
+ *
+ * Level 0 is the original image, and each following level is half the size of
+ * the one before it. The smaller levels are built on a background thread; until
+ * a level is ready, drawing falls back to the closest finer level that is.
+ *
+ * Tiles can be drawn at two qualities. FAST scales the closest level with
+ * nearest-neighbour sampling, which costs little more than a copy, for frames
+ * drawn while the view is being zoomed or scrolled. FINE tiles are resampled
+ * with bicubic interpolation to exactly the scale they are shown at, on the
+ * builder thread, and kept for each scale until they take more than
+ * MAX_REFINED_BYTES. Until a FINE tile is ready the FAST one is drawn instead.
+ *
+ * A pyramid can also be made from a TileSource, such as a save file that
+ * already holds every level as tiles, or an image that can be decoded a region
+ * at a time. Then nothing is built, and no level is ever held whole: tiles are
+ * read on the builder thread when they are drawn, and kept until they take
+ * more than MAX_CACHED_BYTES. Until a tile has been read, the part of the
+ * closest coarser level that has been is drawn in its place. A tile that
+ * cannot be read is not tried again until retry is called.
+ */
+public class ImagePyramid {
+  public static final int TILE_SIZE = 512;
+  private static final long MAX_REFINED_BYTES = 64L * 1024 * 1024;
+  // Enough for a few screens' worth of tiles in each view, and their
+  // stand-ins.
+  private static final long MAX_CACHED_BYTES = 256L * 1024 * 1024;
+
+  public static enum Quality {
+    FAST, // Nearest neighbour, from the closest level.
+    FINE, // Bicubic, at exactly the drawn scale.
+  }
+
+  /** Where a pyramid's tiles come from, when they are read rather than built. */
+  public static interface TileSource {
+    /**
+     * Reads the tiles of the given level in range, whose x and width count
+     * columns, and y and height rows. Returns them by [row][column], from the
+     * corner of range.
+     */
+    BufferedImage[][] readTiles(int level, Rectangle range)
+      throws IOException;
+
+    /**
+     * Returns the tiles to read when those in wanted are needed. A source that
+     * can read more at little extra cost may return a larger range, to have
+     * those read too. By default, only the tiles wanted are read.
+     */
+    default Rectangle getReadRange(final int level, final Rectangle wanted) {
+      return wanted;
+    }
+
+    /**
+     * Called after each batch of reads, and on dispose, so anything held open
+     * for reading can be let go.
+     */
+    void release();
+  }
+
+  private static final ExecutorService builder = Executors.newSingleThreadExecutor((r) -> {
+    final Thread t = new Thread(r, "ImagePyramid builder");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static class Level {
+    final BufferedImage image; // Null if the tiles are read as needed.
+    final int width, height;
+    final int rows, columns;
+    final BufferedImage[][] tiles; // [row][column], or null with image.
+
+    // A level whose tiles are read from a TileSource, into the cache.
+    Level(final int width, final int height) {
+      image = null;
+      this.width = width;
+      this.height = height;
+      columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+      rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+      tiles = null;
+    }
+
+    Level(final BufferedImage img) {
+      image = img;
+      width = img.getWidth();
+      height = img.getHeight();
+      columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+      rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+      tiles = new BufferedImage[rows][columns];
+      for (int row = 0; row < rows; row++) {
+        for (int column = 0; column < columns; column++) {
+          final int x = column * TILE_SIZE;
+          final int y = row * TILE_SIZE;
+          tiles[row][column] = img.getSubimage(x, y, Math.min(TILE_SIZE, width - x),
+                                               Math.min(TILE_SIZE, height - y));
+        }
+      }
+    }
+  }
+
+  // A tile of one level, resampled to one scale. A scale of 0 stands for the
+  // tile itself, as read from a TileSource.
+  private static class TileKey {
+    final double scale;
+    final int level, row, column;
+
+    TileKey(final double scale, final int level, final int row, final int column) {
+      this.scale = scale;
+      this.level = level;
+      this.row = row;
+      this.column = column;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof TileKey)) {
+        return false;
+      }
+      final TileKey k = (TileKey)o;
+      return scale == k.scale && level == k.level && row == k.row && column == k.column;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(scale, level, row, column);
+    }
+  }
+
+  private final int width, height;
+  private final int type;
+  private final AtomicReferenceArray<Level> levels;
+  private final Runnable onLevelReady;
+  private final Consumer<IOException> onReadFailed;
+  private final TileSource source; // Null if the levels are built.
+  private volatile boolean disposed = false;
+
+  // Bumped whenever something drawn may look different: a level or a batch of
+  // FINE tiles becoming available.
+  private final AtomicInteger revision = new AtomicInteger();
+
+  // FINE tiles, tiles read from the source, and those being made or read. All
+  // are guarded by refined.
+  private final TileCache<TileKey> refined = new TileCache<>(MAX_REFINED_BYTES);
+  private final TileCache<TileKey> cached = new TileCache<>(MAX_CACHED_BYTES);
+  private final Set<TileKey> pending = new HashSet<>();
+  // Pending tiles that were refreshed while being made or read, so what comes
+  // of it is out of date and not kept.
+  private final Set<TileKey> stale = new HashSet<>();
+  // Tiles that could not be read, so drawing does not keep trying them.
+  private final Set<TileKey> failed = new HashSet<>();
+
+  /**
+   * Starts building the pyramid for the given image. onLevelReady is called on
+   * the builder thread every time another level, or another batch of FINE
+   * tiles, becomes available.
+   */
+  public ImagePyramid(final BufferedImage img, final Runnable onLevelReady) {
+    width = img.getWidth();
+    height = img.getHeight();
+    type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                                          : BufferedImage.TYPE_INT_RGB;
+    this.onLevelReady = onLevelReady;
+    onReadFailed = null;
+    source = null;
+
+    levels = new AtomicReferenceArray<>(countLevels(width, height));
+    levels.set(0, new Level(img));
+    if (levels.length() > 1) {
+      builder.execute(() -> build(img));
+    }
+  }
+
+  /**
+   * Makes a pyramid for a width by height image whose levels are read from
+   * source as they are drawn. source must tile every level the way
+   * getLevelSizes says. coarsest is the single tile of the smallest level, if
+   * it has already been read, or null. onLevelReady is called on the builder
+   * thread every time another batch of tiles has been read, or refined, and
+   * onReadFailed whenever a batch cannot be read.
+   */
+  public ImagePyramid(final int width, final int height, final TileSource source,
+                      final BufferedImage coarsest, final Runnable onLevelReady,
+                      final Consumer<IOException> onReadFailed) {
+    this.width = width;
+    this.height = height;
+    // Not known until the tiles are read; this works for any of them.
+    type = BufferedImage.TYPE_INT_ARGB;
+    this.onLevelReady = onLevelReady;
+    this.onReadFailed = onReadFailed;
+    this.source = source;
+
+    final Dimension[] sizes = getLevelSizes(width, height);
+    levels = new AtomicReferenceArray<>(sizes.length);
+    for (int i = 0; i < sizes.length; i++) {
+      levels.set(i, new Level(sizes[i].width, sizes[i].height));
+    }
+    // The single tile of the smallest level stands in for anything not read
+    // yet, so it is read first.
+    final TileKey smallest = new TileKey(0, sizes.length - 1, 0, 0);
+    if (coarsest != null) {
+      cached.put(smallest, coarsest);
+    }
+    else {
+      read(sizes.length - 1, Collections.singleton(smallest));
+    }
+  }
+
+  private static int countLevels(final int width, final int height) {
+    int count = 1;
+    for (int size = Math.max(width, height); size > TILE_SIZE; size = (size + 1) / 2) {
+      count++;
+    }
+    return count;
+  }
+
+  /** Returns the size of each level of the pyramid for a width by height image. */
+  public static Dimension[] getLevelSizes(final int width, final int height) {
+    final Dimension[] sizes = new Dimension[countLevels(width, height)];
+    sizes[0] = new Dimension(width, height);
+    for (int i = 1; i < sizes.length; i++) {
+      sizes[i] = new Dimension((sizes[i - 1].width + 1) / 2, (sizes[i - 1].height + 1) / 2);
+    }
+    return sizes;
+  }
+
+  /** Returns the next level down from img: half its size, rounding up. */
+  public static BufferedImage halve(final BufferedImage img) {
+    final int w = (img.getWidth() + 1) / 2;
+    final int h = (img.getHeight() + 1) / 2;
+    final BufferedImage next = new BufferedImage(w, h, img.getColorModel().hasAlpha()
+      ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = next.createGraphics();
+    // Bilinear sampling at exactly half size averages each 2x2 block.
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                       RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    g.drawImage(img, 0, 0, w, h, null);
+    g.dispose();
+    return next;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** The number of levels the pyramid will have once it is fully built. */
+  public int getLevelCount() {
+    return levels.length();
+  }
+
+  /** The number of levels built so far, including the full-size one. */
+  public int getLevelsReady() {
+    int ready = 0;
+    for (int i = 0; i < levels.length(); i++) {
+      if (levels.get(i) != null) {
+        ready++;
+      }
+    }
+    return ready;
+  }
+
+  /**
+   * Returns a number that changes whenever drawing the same area at the same
+   * scale and quality may give a different result.
+   */
+  public int getRevision() {
+    return revision.get();
+  }
+
+  /**
+   * Returns how many bytes of tiles read from the source, and of FINE tiles,
+   * are held. Levels that were built are not counted.
+   */
+  public long getCachedBytes() {
+    synchronized (refined) {
+      return cached.getBytes() + refined.getBytes();
+    }
+  }
+
+  /** Stops building any remaining levels, when the image is no longer in use. */
+  public void dispose() {
+    disposed = true;
+    if (source != null) {
+      builder.execute(source::release);
+    }
+  }
+
+  /**
+   * Lets the tiles that could not be read be tried again, the next time they
+   * are drawn.
+   */
+  public void retry() {
+    synchronized (refined) {
+      failed.clear();
+    }
+    revision.incrementAndGet();
+  }
+
+  /**
+   * Drops the given tile of a level, as read from the source, and anything
+   * refined from it, so that it is read again the next time it is drawn. For a
+   * source whose tiles change, such as a SyncedImage. Does nothing if the
+   * levels are built rather than read.
+   */
+  public void refresh(final int index, final int row, final int column) {
+    if (source == null) {
+      return;
+    }
+    synchronized (refined) {
+      cached.remove(new TileKey(0, index, row, column));
+      refined.removeIf((key) -> key.level == index && key.row == row && key.column == column);
+      for (final TileKey key : pending) {
+        if (key.level == index && key.row == row && key.column == column) {
+          stale.add(key);
+        }
+      }
+    }
+    revision.incrementAndGet();
+  }
+
+  private void build(final BufferedImage img) {
+    final long start = System.currentTimeMillis();
+    BufferedImage prev = img;
+    for (int i = 1; i < levels.length(); i++) {
+      if (disposed) {
+        return;
+      }
+      final BufferedImage next = halve(prev);
+      levels.set(i, new Level(next));
+      prev = next;
+      revision.incrementAndGet();
+      onLevelReady.run();
+    }
+    System.err.println("Built " + levels.length() + " pyramid levels for " + width + "x" +
+                       height + " image in " + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Chooses the smallest level that is still at least as large as the image is
+   * being displayed, falling back to a larger level if it is not built yet.
+   * Returns its index.
+   */
+  private int chooseLevel(final double scale) {
+    int best = 0;
+    for (int i = 1; i < levels.length(); i++) {
+      if (Math.pow(0.5, i) < scale) {
+        break;
+      }
+      if (levels.get(i) != null) {
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Draws the parts of the image that fall within clip, with the image's
+   * top-left corner at offset and scaled by scale. At FINE quality, any tiles
+   * not yet resampled for this scale are drawn FAST and queued to be refined.
+   * Tiles not yet read from the TileSource are queued to be read.
+   */
+  public void draw(final Graphics2D g, final Point offset, final double scale,
+                   final Rectangle clip, final Quality quality) {
+    final int index = chooseLevel(scale);
+    final Level level = levels.get(index);
+
+    // Converts between level coordinates and window coordinates.
+    final double xScale = scale * width / level.width;
+    final double yScale = scale * height / level.height;
+
+    final int firstColumn = Math.max(0, (int)Math.floor((clip.x - offset.x) / xScale / TILE_SIZE));
+    final int lastColumn = Math.min(level.columns - 1, (int)Math
+      .floor((clip.x + clip.width - offset.x) / xScale / TILE_SIZE));
+    final int firstRow = Math.max(0, (int)Math.floor((clip.y - offset.y) / yScale / TILE_SIZE));
+    final int lastRow = Math.min(level.rows - 1, (int)Math
+      .floor((clip.y + clip.height - offset.y) / yScale / TILE_SIZE));
+
+    Collection<TileKey> missing = null;
+    Collection<TileKey> unread = null;
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int column = firstColumn; column <= lastColumn; column++) {
+        final int lx = column * TILE_SIZE;
+        final int ly = row * TILE_SIZE;
+        final int tw = Math.min(TILE_SIZE, level.width - lx);
+        final int th = Math.min(TILE_SIZE, level.height - ly);
+
+        // Compute both edges from level coordinates so neighbouring tiles meet
+        // without gaps or overlap.
+        final int x1 = offset.x + (int)Math.floor(lx * xScale);
+        final int y1 = offset.y + (int)Math.floor(ly * yScale);
+        final int x2 = offset.x + (int)Math.floor((lx + tw) * xScale);
+        final int y2 = offset.y + (int)Math.floor((ly + th) * yScale);
+        if (x2 <= x1 || y2 <= y1) {
+          continue;
+        }
+
+        final BufferedImage tile = getTile(index, row, column);
+        if (tile == null) {
+          if (unread == null) {
+            unread = new ArrayList<>();
+          }
+          unread.add(new TileKey(0, index, row, column));
+          drawStandIn(g, index, row, column, x1, y1, x2, y2);
+          continue;
+        }
+
+        // Nothing to refine if the tile is drawn at its own size.
+        final boolean scaled = x2 - x1 != tw || y2 - y1 != th;
+        if (quality == Quality.FINE && scaled) {
+          final TileKey key = new TileKey(scale, index, row, column);
+          final BufferedImage fine = getRefined(key);
+          if (fine != null) {
+            g.drawImage(fine, x1, y1, null);
+            continue;
+          }
+          if (missing == null) {
+            missing = new ArrayList<>();
+          }
+          missing.add(key);
+        }
+        g.drawImage(tile, x1, y1, x2, y2, 0, 0, tw, th, null);
+      }
+    }
+    if (unread != null) {
+      read(index, unread);
+    }
+    if (missing != null) {
+      refine(xScale, yScale, missing);
+    }
+  }
+
+  private BufferedImage getTile(final int index, final int row, final int column) {
+    final Level level = levels.get(index);
+    if (level.image != null) {
+      return level.tiles[row][column];
+    }
+    synchronized (refined) {
+      return cached.get(new TileKey(0, index, row, column));
+    }
+  }
+
+  // Draws the closest coarser tile that has been read over the window area x1,
+  // y1, x2, y2 that the given tile covers, in place of the tile until it is
+  // read. Draws nothing if none has been.
+  private void drawStandIn(final Graphics2D g, final int index, final int row, final int column,
+                           final int x1, final int y1, final int x2, final int y2) {
+    final Level level = levels.get(index);
+    for (int i = index + 1; i < levels.length(); i++) {
+      final int shift = i - index;
+      final int coarseRow = row >> shift;
+      final int coarseColumn = column >> shift;
+      final BufferedImage coarse = getTile(i, coarseRow, coarseColumn);
+      if (coarse == null) {
+        continue;
+      }
+      // Where the tile falls in the coarse one, in its pixels.
+      final double factor = 1.0 / (1 << shift);
+      final double sx = (column * TILE_SIZE) * factor - coarseColumn * TILE_SIZE;
+      final double sy = (row * TILE_SIZE) * factor - coarseRow * TILE_SIZE;
+      final double sw = Math.min(TILE_SIZE, level.width - column * TILE_SIZE) * factor;
+      final double sh = Math.min(TILE_SIZE, level.height - row * TILE_SIZE) * factor;
+      g.drawImage(coarse, x1, y1, x2, y2, (int)Math.floor(sx), (int)Math.floor(sy),
+                  Math.min(coarse.getWidth(), (int)Math.ceil(sx + sw)),
+                  Math.min(coarse.getHeight(), (int)Math.ceil(sy + sh)), null);
+      return;
+    }
+  }
+
+  // Queues the given tiles of one level to be read from the source on the
+  // builder thread, along with any others the source would rather read with
+  // them, unless they already are, or could not be read before.
+  private void read(final int index, final Collection<TileKey> keys) {
+    final Collection<TileKey> queued = new ArrayList<>();
+    synchronized (refined) {
+      for (final TileKey key : keys) {
+        if (!cached.containsKey(key) && !failed.contains(key) && pending.add(key)) {
+          queued.add(key);
+        }
+      }
+    }
+    if (queued.isEmpty()) {
+      return;
+    }
+    builder.execute(() -> readNow(index, queued));
+  }
+
+  /**
+   * Reads every tile of the level that drawing at the given scale would use, on
+   * the calling thread, so that the first frame drawn at that scale has them
+   * all. Meant for a pyramid that is not being drawn yet, such as that of a map
+   * likely to be shown next. Does nothing if the levels are built rather than
+   * read.
+   */
+  public void prefetch(final double scale) {
+    if (source == null) {
+      return;
+    }
+    final int index = chooseLevel(scale);
+    final Level level = levels.get(index);
+    final Collection<TileKey> queued = new ArrayList<>();
+    synchronized (refined) {
+      for (int row = 0; row < level.rows; row++) {
+        for (int column = 0; column < level.columns; column++) {
+          final TileKey key = new TileKey(0, index, row, column);
+          if (!cached.containsKey(key) && !failed.contains(key) && pending.add(key)) {
+            queued.add(key);
+          }
+        }
+      }
+    }
+    if (!queued.isEmpty()) {
+      readNow(index, queued);
+    }
+  }
+
+  // Reads the given pending tiles of one level from the source, with any others
+  // it would rather read with them, and caches them. If they cannot be read,
+  // they are marked failed, and their stand-ins stay.
+  private void readNow(final int index, final Collection<TileKey> queued) {
+    if (disposed) {
+      return;
+    }
+    Rectangle wanted = null;
+    for (final TileKey key : queued) {
+      final Rectangle tile = new Rectangle(key.column, key.row, 1, 1);
+      wanted = (wanted == null ? tile : wanted.union(tile));
+    }
+    final Rectangle range = source.getReadRange(index, wanted);
+    final BufferedImage[][] tiles;
+    try {
+      tiles = source.readTiles(index, range);
+    }
+    catch (final IOException e) {
+      System.err.println("Failed to read tiles " + range + " of level " + index + ": " + e);
+      synchronized (refined) {
+        for (final TileKey key : queued) {
+          pending.remove(key);
+          stale.remove(key);
+          failed.add(key);
+        }
+      }
+      onReadFailed.accept(e);
+      return;
+    }
+    finally {
+      source.release();
+    }
+    synchronized (refined) {
+      for (int row = 0; row < range.height; row++) {
+        for (int column = 0; column < range.width; column++) {
+          final TileKey key = new TileKey(0, index, range.y + row, range.x + column);
+          pending.remove(key);
+          if (!stale.remove(key)) {
+            cached.put(key, tiles[row][column]);
+          }
+        }
+      }
+    }
+    revision.incrementAndGet();
+    onLevelReady.run();
+  }
+
+  private BufferedImage getRefined(final TileKey key) {
+    synchronized (refined) {
+      return refined.get(key);
+    }
+  }
+
+  // Queues the given tiles to be resampled on the builder thread, unless they
+  // already are.
+  private void refine(final double xScale, final double yScale,
+                      final Collection<TileKey> keys) {
+    final Collection<TileKey> queued = new ArrayList<>();
+    synchronized (refined) {
+      for (final TileKey key : keys) {
+        // May have been finished since the caller looked.
+        if (!refined.containsKey(key) && pending.add(key)) {
+          queued.add(key);
+        }
+      }
+    }
+    if (queued.isEmpty()) {
+      return;
+    }
+    builder.execute(() -> {
+      for (final TileKey key : queued) {
+        if (disposed) {
+          return;
+        }
+        final BufferedImage fine = resample(key.level, xScale, yScale, key.row, key.column);
+        synchronized (refined) {
+          pending.remove(key);
+          if (!stale.remove(key) && fine != null) {
+            refined.put(key, fine);
+          }
+        }
+      }
+      revision.incrementAndGet();
+      onLevelReady.run();
+    });
+  }
+
+  // Bicubic resampling of one tile. Samples the whole level rather than just
+  // the tile, if it is held whole, so edges blend into their neighbours without
+  // seams. Returns null if the tile was read, but has since been dropped from
+  // the cache.
+  private BufferedImage resample(final int index, final double xScale, final double yScale,
+                                final int row, final int column) {
+    final Level level = levels.get(index);
+    final BufferedImage tile = getTile(index, row, column);
+    if (tile == null) {
+      return null;
+    }
+    final int lx = column * TILE_SIZE;
+    final int ly = row * TILE_SIZE;
+    final int x1 = (int)Math.floor(lx * xScale);
+    final int y1 = (int)Math.floor(ly * yScale);
+    final int x2 = (int)Math.floor((lx + tile.getWidth()) * xScale);
+    final int y2 = (int)Math.floor((ly + tile.getHeight()) * yScale);
+
+    final BufferedImage fine = new BufferedImage(x2 - x1, y2 - y1, type);
+    final Graphics2D g = fine.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                       RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+    g.translate(-x1, -y1);
+    g.scale(xScale, yScale);
+    if (level.image != null) {
+      g.drawImage(level.image, 0, 0, null);
+    }
+    else {
+      g.drawImage(tile, lx, ly, null);
+    }
+    g.dispose();
+    return fine;
+  }
+}
@@ -4,13 +4,49 @@ package net.jonp.dmtool;
 import java.io.File;
 import java.io.IOException;
 
-import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 public class Main {
+  private static final String STREAM_FLAG = "--stream=";
+  private static final String SERVE_FLAG = "--serve=";
+  private static final String JOIN_FLAG = "--join=";
+  private static final String TOKEN_FLAG = "--token=";
+
+  // The port number after a flag, or null if there is none.
+  private static Integer parsePort(final String arg, final String value) {
+    try {
+      return Integer.parseInt(value);
+    }
+    catch (final NumberFormatException e) {
+      System.err.println("Ignoring \"" + arg + "\": not a port number");
+      return null;
+    }
+  }
+
   public static void main(final String[] args) {
     File save = null;
     File image = null;
+    Integer streamPort = null;
+    String serve = null;
+    String join = null;
+    String token = null;
     for (final String arg : args) {
+      if (arg.startsWith(STREAM_FLAG)) {
+        streamPort = parsePort(arg, arg.substring(STREAM_FLAG.length()));
+        continue;
+      }
+      if (arg.startsWith(SERVE_FLAG)) {
+        serve = arg.substring(SERVE_FLAG.length());
+        continue;
+      }
+      if (arg.startsWith(JOIN_FLAG)) {
+        join = arg.substring(JOIN_FLAG.length());
+        continue;
+      }
+      if (arg.startsWith(TOKEN_FLAG)) {
+        token = arg.substring(TOKEN_FLAG.length());
+        continue;
+      }
       final File f = new File(arg);
       if (arg.endsWith(DMTool.SAVE_FILE_EXTENSION)) {
         save = f;
@@ -23,28 +59,58 @@ public class Main {
     }
 
     final DMTool tool = new DMTool();
-    if (save != null) {
-      try {
-        tool.open(save);
+    if (join != null) {
+      // A player client: just the player view, of someone else's map.
+      final int colon = join.lastIndexOf(':');
+      final Integer port = (colon < 0) ? null : parsePort(join, join.substring(colon + 1));
+      if (port == null || token == null) {
+        System.err.println("Usage: " + JOIN_FLAG + "HOST:PORT " + TOKEN_FLAG + "TOKEN");
+        return;
       }
-      catch (final IOException e) {
-        JOptionPane.showMessageDialog(null, "Failed to load file: " + e.getMessage(), "Load Error",
-                                      JOptionPane.ERROR_MESSAGE);
-        System.err.println("Failed to open \"" + save + "\"");
-        e.printStackTrace();
+      new SyncClient(tool, join.substring(0, colon), port, token).start();
+      tool.runPlayerOnly();
+      return;
+    }
+    if (serve != null) {
+      // Every address this computer has, unless one is given.
+      final int colon = serve.lastIndexOf(':');
+      final String address = (colon < 0) ? null : serve.substring(0, colon);
+      final Integer port = parsePort(serve, serve.substring(colon + 1));
+      if (port != null) {
+        final String secret = (token != null) ? token : SyncServer.newToken();
+        try {
+          new SyncServer(tool, address, port, secret);
+          System.err.println("Players join with " + JOIN_FLAG + "HOST:" + port + " " + TOKEN_FLAG +
+                             secret);
+        }
+        catch (final IOException e) {
+          System.err.println("Failed to serve player clients on " + serve);
+          e.printStackTrace();
+        }
       }
     }
-    else if (image != null) {
+    if (streamPort != null) {
       try {
-        tool.newMap(image);
+        tool.addPlayerSink(new MjpegServer(streamPort));
       }
       catch (final IOException e) {
-        JOptionPane.showMessageDialog(null, "Failed to load image: " + e.getMessage(), "Load Error",
-                                      JOptionPane.ERROR_MESSAGE);
-        System.err.println("Failed to open \"" + image + "\"");
+        System.err.println("Failed to start streaming on port " + streamPort);
         e.printStackTrace();
       }
     }
+    // Both windows open right away, and fill in once the map has loaded.
+    final File saveFile = save;
+    final File imageFile = image;
+    SwingUtilities.invokeLater(() -> {
+      if (saveFile != null) {
+        tool.open(saveFile,
+                  new ProgressDialog(null, "Opening", saveFile, "Failed to load file", "Load Error"));
+      }
+      else if (imageFile != null) {
+        tool.newMap(imageFile, new ProgressDialog(null, "Loading", imageFile,
+                                                  "Failed to load image", "Load Error"));
+      }
+    });
     tool.run();
   }
 }
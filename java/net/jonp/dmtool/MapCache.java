@@ -0,0 +1,111 @@
+package net.jonp.dmtool;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the pyramids of maps shown recently, or prefetched, so that switching
+ * back to one shows it at once rather than reading its tiles again. Those not
+ * in use are let go, least recently used first, once together they hold more
+ * than MAX_BYTES of tiles. Only used on the event dispatch thread.
+ */
+public class MapCache {
+  // A few rooms' worth of tiles, on top of those of the maps in use.
+  private static final long MAX_BYTES = 384L * 1024 * 1024;
+
+  private final Consumer<CampaignMap> onLevelReady;
+  private final BiConsumer<CampaignMap, IOException> onReadFailed;
+
+  // Least recently used first.
+  private final Collection<CampaignMap> held = new LinkedHashSet<>();
+
+  /**
+   * onLevelReady is called, on the builder thread, with the map whose pyramid
+   * has more tiles ready, and onReadFailed with the map whose pyramid could not
+   * read some, and why.
+   */
+  public MapCache(final Consumer<CampaignMap> onLevelReady,
+                  final BiConsumer<CampaignMap, IOException> onReadFailed) {
+    this.onLevelReady = onLevelReady;
+    this.onReadFailed = onReadFailed;
+  }
+
+  /** Returns map's pyramid, making one if needed, and counts it as just used. */
+  public ImagePyramid use(final CampaignMap map) {
+    held.remove(map);
+    return hold(map);
+  }
+
+  /**
+   * Returns map's pyramid, making one if needed. Unlike use, a map already held
+   * keeps its place, so prefetching does not push out maps actually shown.
+   */
+  public ImagePyramid hold(final CampaignMap map) {
+    if (map.pyramid == null) {
+      map.pyramid = new ImagePyramid(map.image.getWidth(), map.image.getHeight(), map.image,
+                                     map.coarsest, () -> onLevelReady.accept(map),
+                                     (e) -> onReadFailed.accept(map, e));
+      // The pyramid holds it now, for as long as it needs it.
+      map.coarsest = null;
+    }
+    held.add(map);
+    return map.pyramid;
+  }
+
+  /** Returns whether pyramid belongs to a map held here. */
+  public boolean holds(final ImagePyramid pyramid) {
+    for (final CampaignMap map : held) {
+      if (map.pyramid == pyramid) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Lets go of pyramids, least recently used first, until those not in use fit
+   * MAX_BYTES. The pyramids in inUse, which may include nulls, are kept.
+   */
+  public void trim(final ImagePyramid... inUse) {
+    final Collection<ImagePyramid> keep = Arrays.asList(inUse);
+    long bytes = 0;
+    for (final CampaignMap map : held) {
+      if (!keep.contains(map.pyramid)) {
+        bytes += map.pyramid.getCachedBytes();
+      }
+    }
+    final Iterator<CampaignMap> it = held.iterator();
+    while (bytes > MAX_BYTES && it.hasNext()) {
+      final CampaignMap map = it.next();
+      if (keep.contains(map.pyramid)) {
+        continue;
+      }
+      bytes -= map.pyramid.getCachedBytes();
+      System.err.println("Let go of map \"" + map.name + "\"");
+      map.pyramid.dispose();
+      map.pyramid = null;
+      it.remove();
+    }
+  }
+
+  /**
+   * Lets go of every pyramid, when other maps are opened in place of these. Any
+   * in inUse are not disposed, but no longer held either; disposing them is
+   * left to whoever is using them.
+   */
+  public void clear(final ImagePyramid... inUse) {
+    final Collection<ImagePyramid> keep = Arrays.asList(inUse);
+    for (final CampaignMap map : held) {
+      if (!keep.contains(map.pyramid)) {
+        map.pyramid.dispose();
+      }
+      map.pyramid = null;
+    }
+    held.clear();
+  }
+}
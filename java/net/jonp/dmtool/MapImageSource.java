@@ -0,0 +1,24 @@
+package net.jonp.dmtool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A map image that is read a piece at a time, as it is drawn, rather than
+ * decoded and held whole. How much memory a map takes is then bounded by what
+ * is on screen and the size of ImagePyramid's tile cache, not by how large the
+ * map is.
+ */
+public interface MapImageSource
+  extends ImagePyramid.TileSource {
+  int getWidth();
+
+  int getHeight();
+
+  /**
+   * Writes the image as it is stored, in whatever format it is in, without
+   * decoding it.
+   */
+  void writeImage(OutputStream out)
+    throws IOException;
+}
@@ -1,15 +1,12 @@
 
 package net.jonp.dmtool;
 
-import java.awt.AlphaComposite;
 import java.awt.Canvas;
 import java.awt.Color;
 import java.awt.Cursor;
-import java.awt.Font;
-import java.awt.FontMetrics;
+import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
@@ -22,18 +19,17 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
-import java.awt.font.LineMetrics;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.Arc2D;
-import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
-import java.awt.image.RasterFormatException;
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.imageio.ImageIO;
 import javax.swing.JColorChooser;
@@ -50,22 +46,6 @@ public class MapPanel
   private static final int UP = 3;
   private static final int DOWN = 4;
 
-  private static final Color PLAYER_MASK_COLOR = new Color(0, 0, 0, 255);
-  private static final Color PLAYER_FOGGED_MASK_COLOR = new Color(0, 0, 0, 128);
-  private static final Color DM_EMPTY_MASK_COLOR = new Color(0, 0, 0, 128);
-  private static final Color DM_HIDDEN_MASK_COLOR = new Color(0, 0, 128, 128);
-  private static final Color DM_SELECTION_MASK_COLOR = new Color(0, 192, 0, 128);
-  private static final Color DM_ACTIVE_MASK_COLOR = new Color(255, 255, 0, 64);
-  private static final Color DM_FOGGED_MASK_COLOR = new Color(192, 0, 192, 128);
-
-  private static final int HANDLE_SIZE = 6;
-  private static final Color HANDLE_COLOR = Color.red;
-  private static final Color LOCKED_HANDLE_COLOR = Color.blue;
-  private static final Color SELECTION_COLOR = Color.yellow;
-  private static final Color ACTIVE_SELECTION_COLOR = Color.cyan;
-
-  private static final Color DEAD_AVATAR_COLOR = new Color(92, 92, 92, 192);
-
   private static final int OUT_OF_REGION = 0;
   private static final int NW_CORNER = 1;
   private static final int N_EDGE = 2;
@@ -94,79 +74,40 @@ public class MapPanel
     cursorMap.put(NEW_REGION, Cursor.CROSSHAIR_CURSOR);
   }
 
-  private class Corners {
-    final int left, right, top, bottom;
-    final int width, height;
-    final int midX, midY;
-
-    public Corners(final Region r) {
-      final double scale = dmtool.getScale(isPlayer);
-      final double invScale = 1.0 / scale;
-
-      // If dragging a box, set the b* vars that act as the active region's
-      // dimensions.
-      // The active region will have all 0s, so we can add the two together to
-      // get the actual region dimensions.
-      double bx = 0;
-      double by = 0;
-      double bw = 0;
-      double bh = 0;
-      if (dragging &&
-          (r == activeRegion ||
-           (avatarSelection.containsKey(activeRegion.id) && avatarSelection.containsKey(r.id)))) {
-        // Mouse coordinates are in a scaled image, so reverse the scale first.
-        final int dx = mx - sx;
-        final int dy = my - sy;
-        bx = invScale * xm * dx;
-        bw = invScale * wm * dx;
-        by = invScale * ym * dy;
-        bh = invScale * hm * dy;
-      }
+  final DMTool dmtool;
+  final Window parentWindow;
+  final boolean isPlayer;
 
-      // Square the region if dragging while holding the square modifier.
-      double rWidth = r.getW() + bw;
-      double rHeight = r.getH() + bh;
-      if (dragging && squareDrag &&
-          (r == activeRegion ||
-           (avatarSelection.containsKey(activeRegion.id) && avatarSelection.containsKey(r.id)))) {
-        if (rWidth > rHeight) {
-          rWidth = rHeight;
-        }
-        rHeight = rWidth;
-      }
+  // Frames are drawn on this thread, from Scenes captured on the event thread.
+  final RenderThread renderThread;
 
-      // Determine the corner & middle-edge coordinates.
-      final double rLeft = Math.min(r.getX() + bx, r.getX() + bx + rWidth);
-      final double rRight = Math.max(r.getX() + bx, r.getX() + bx + rWidth);
-      final double rTop = Math.min(r.getY() + by, r.getY() + by + rHeight);
-      final double rBottom = Math.max(r.getY() + by, r.getY() + by + rHeight);
+  // Regions changed since the last frame. Unless fullRepaint is set, only the
+  // areas they were drawn in before and after the change are recomposed. These
+  // are only used on the event thread, and handed to the next Scene.
+  final Map<Integer, Region> damagedRegions = new HashMap<>();
+  boolean fullRepaint = true;
+  boolean thaw = false; // The player's frozen frame is out of date.
 
-      final Point off = dmtool.getOffset(isPlayer);
-      left = (int)(off.x + scale * rLeft);
-      right = (int)(off.x + scale * rRight);
-      top = (int)(off.y + scale * rTop);
-      bottom = (int)(off.y + scale * rBottom);
-      width = right - left;
-      height = bottom - top;
-      midX = (left + right) / 2;
-      midY = (top + bottom) / 2;
-    }
+  // The snapshot of the regions the last Scene was given, reused until the
+  // regions are edited.
+  Regions snapshot;
+  Regions snapshotSource;
+  long snapshotEdits;
 
-    public boolean contains(final int x, final int y) {
-      return left <= x && x <= right && top <= y && y <= bottom;
-    }
-  }
+  // Everything below is only used on the render thread.
 
-  final DMTool dmtool;
-  final Window parentWindow;
-  final boolean isPlayer;
+  // Reused between frames to avoid allocating full-window images every paint.
+  final FrameBufferPool frameBuffers = new FrameBufferPool();
 
-  final Color emptyMaskColor; // When there is no region.
-  final Color hiddenMaskColor; // When the region is hidden.
-  final Color selectionMaskColor; // When drawing a selection box.
-  final Color activeMaskColor; // When a region (but not a selection box) is
-                               // active.
-  final Color foggedMaskColor;
+  // Composes frames into the "frame" buffer, keeping its layers in frameBuffers
+  // as well.
+  final SceneRenderer renderer;
+
+  // DMTool's count of added player sinks, as of the last frame sent to them.
+  int offeredToSinksAdded = 0;
+
+  // How many objects each frame drew, and how many were skipped as out of view.
+  final RenderStats renderStats;
 
   // Updated when the map changes.
   int imgWidth = 1;
@@ -242,31 +183,24 @@ public class MapPanel
     this.dmtool = dmtool;
     this.parentWindow = parentWindow;
     this.isPlayer = isPlayer;
-
-    if (isPlayer) {
-      emptyMaskColor = PLAYER_MASK_COLOR;
-      hiddenMaskColor = PLAYER_MASK_COLOR;
-      selectionMaskColor = PLAYER_MASK_COLOR;
-      activeMaskColor = PLAYER_MASK_COLOR;
-      foggedMaskColor = PLAYER_FOGGED_MASK_COLOR;
-    }
-    else {
-      emptyMaskColor = DM_EMPTY_MASK_COLOR;
-      hiddenMaskColor = DM_HIDDEN_MASK_COLOR;
-      selectionMaskColor = DM_SELECTION_MASK_COLOR;
-      activeMaskColor = DM_ACTIVE_MASK_COLOR;
-      foggedMaskColor = DM_FOGGED_MASK_COLOR;
-    }
+    renderStats = new RenderStats(isPlayer ? "Player view" : "DM view");
+    renderStats.register();
+    renderThread = new RenderThread(this, isPlayer ? "Player view renderer" : "DM view renderer",
+                                    parentWindow.getGraphicsConfiguration());
+    renderer = new SceneRenderer(isPlayer, frameBuffers, renderStats);
 
     SwingUtilities.invokeLater(() -> {
       createBufferStrategy(2);
+      renderThread.start();
       dmtool.addNewMapListener(() -> {
+        thaw = true;
         rescale();
         repaint();
       });
 
       if (isPlayer) {
         dmtool.addResumeListener(() -> {
+          thaw = true;
           rescale();
           repaint();
         });
@@ -281,14 +215,21 @@ public class MapPanel
           }
           dragging = false;
 
+          // Everything that was drawn at its dragged position.
+          final Collection<Region> changed = new ArrayList<>(selectedRegions());
+
           // Right-click with ~no movement = deselect.
           if (e.getButton() == 3 && mouseDist(sx, sy) <= 3.0) {
             avatarSelection.remove(activeRegion.id);
-            repaint();
+            repaint(changed);
             return;
           }
 
-          // Store new region sizes/positions.
+          // Store new region sizes/positions. A selection box is not part of
+          // the model, but anything else is about to change.
+          if (!selectionBox) {
+            dmtool.editRegions();
+          }
           // Use Ceil so if the user saw even a small change while dragging,
           // it will appear as a change instead of as an ignored drag.
           final double invScale = 1.0 / dmtool.getScale(isPlayer);
@@ -304,7 +245,6 @@ public class MapPanel
                 }
                 r.h = r.w;
               }
-              r.fontSize = null;
             }
           }
           else {
@@ -315,7 +255,12 @@ public class MapPanel
               }
               activeRegion.h = activeRegion.w;
             }
-            activeRegion.fontSize = null;
+          }
+
+          for (final Region r : changed) {
+            if (isInModel(r)) {
+              dmtool.getRegions(isPlayer).update(r);
+            }
           }
 
           if (activeRegion.isAvatar()) {
@@ -332,7 +277,7 @@ public class MapPanel
             if (newRegionParent != null) {
               parentID = newRegionParent.id;
             }
-            activeRegion = dmtool.getRegions(isPlayer)
+            activeRegion = dmtool.editRegions()
               .addRegion(parentID, activeRegion.x, activeRegion.y, activeRegion.w, activeRegion.h);
             if (newArea) {
               newArea = false;
@@ -340,6 +285,7 @@ public class MapPanel
               activeRegion.color = lastAreaColor;
               activeRegion.isInvisible = false;
             }
+            changed.add(activeRegion);
           }
 
           // If drawing a selection box, mark the new selections.
@@ -353,22 +299,22 @@ public class MapPanel
               activeRegion.y += activeRegion.h;
               activeRegion.h *= -1;
             }
-            for (final RegionGroup g : dmtool.getRegions(isPlayer).getGroups()) {
-              for (final Region r : g.getChildren()) {
-                if (!r.isAvatar()) {
-                  continue;
-                }
-                if (activeRegion.intersects(r)) {
-                  avatarSelection.put(r.id, r);
-                }
+            final Rectangle box = new Rectangle(activeRegion.x, activeRegion.y,
+                                                activeRegion.w, activeRegion.h);
+            for (final Region r : dmtool.getRegions(isPlayer).intersecting(box)) {
+              if (!r.isAvatar()) {
+                continue;
+              }
+              if (activeRegion.intersects(r)) {
+                avatarSelection.put(r.id, r);
               }
             }
             activeRegion = null;
-            repaint();
+            repaintControls();
             return;
           }
 
-          dmtool.repaint();
+          dmtool.repaint(changed);
         }
 
         @Override
@@ -384,11 +330,12 @@ public class MapPanel
             return;
           }
           if (dragging) { // Off-click cancels drag.
+            final Collection<Region> changed = selectedRegions();
             dragging = false;
             newRegion = false;
             newArea = false;
             detectMouseOverRegion();
-            repaint();
+            repaint(changed);
             return;
           }
           if (activeRegion == null && newRegion && e.getButton() == 1) {
@@ -435,7 +382,7 @@ public class MapPanel
             else {
               // Add this avatar to the selection.
               avatarSelection.put(activeRegion.id, activeRegion);
-              repaint();
+              repaintControls();
             }
           }
         }
@@ -447,15 +394,13 @@ public class MapPanel
           if (dragging) {
             mx = e.getX();
             my = e.getY();
-            if (avatarSelection.containsKey(activeRegion.id)) {
-              for (final Region r : avatarSelection.values()) {
-                r.fontSize = null;
-              }
+            if (newRegion || selectionBox) {
+              // Not part of the map yet; only drawn as a highlight.
+              repaintControls();
             }
             else {
-              activeRegion.fontSize = null;
+              repaint(selectedRegions());
             }
-            repaint();
           }
         }
 
@@ -475,6 +420,7 @@ public class MapPanel
                              " with param string \"" + e.paramString() + "\"");
           if (e.getModifiersEx() == 0) {
             scroll(DOWN, e.getWheelRotation());
+            return;
           }
           else if (e.getModifiersEx() == InputEvent.CTRL_DOWN_MASK) {
             // Zoom in such that the same point remains under the mouse cursor
@@ -492,6 +438,7 @@ public class MapPanel
             final int noy = (int)(my - iy * scale);
             dmtool.setScale(scale);
             dmtool.setOffset(new Point(nox, noy));
+            dmtool.repaint();
           }
           else if (e.getModifiersEx() == InputEvent.SHIFT_DOWN_MASK) {
             scroll(RIGHT, e.getWheelRotation());
@@ -506,10 +453,6 @@ public class MapPanel
             // Wheel down is positive, want to darken, so negate.
             adjustColor(0.0f, 0.0f, (float)-e.getPreciseWheelRotation());
           }
-          else {
-            return;
-          }
-          dmtool.repaint();
         }
       });
 
@@ -580,6 +523,12 @@ public class MapPanel
               case KeyEvent.VK_HOME:
                 resetViewCommand();
                 break;
+              case KeyEvent.VK_PAGE_DOWN:
+                switchMapCommand(dmtool.getMapIndex() + 1);
+                break;
+              case KeyEvent.VK_PAGE_UP:
+                switchMapCommand(dmtool.getMapIndex() - 1);
+                break;
               case KeyEvent.VK_C:
                 changeColorCommand();
                 break;
@@ -599,6 +548,12 @@ public class MapPanel
               case KeyEvent.VK_O:
                 openCommand();
                 break;
+              case KeyEvent.VK_D:
+                dmtool.openPlayerDisplay();
+                break;
+              case KeyEvent.VK_M:
+                chooseMapCommand();
+                break;
             }
           }
           else if (e.getModifiersEx() == InputEvent.SHIFT_DOWN_MASK) {
@@ -616,6 +571,9 @@ public class MapPanel
               case KeyEvent.VK_S:
                 saveAsCommand();
                 break;
+              case KeyEvent.VK_N:
+                addMapCommand();
+                break;
             }
           }
         }
@@ -631,10 +589,34 @@ public class MapPanel
 
   private void togglePauseCommand() {
     dmtool.togglePause();
-    repaint();
+    repaintControls(); // Only the PAUSED banner changes in the DM view.
   }
 
   private void newMapCommand() {
+    final File file = chooseImage();
+    if (file == null) {
+      return;
+    }
+    dmtool.newMap(file, new ProgressDialog(parentWindow, "Loading", file, "Failed to load image",
+                                           "Load Error"));
+  }
+
+  private void addMapCommand() {
+    final File file = chooseImage();
+    if (file == null) {
+      return;
+    }
+    dmtool.addMap(file, new ProgressDialog(parentWindow, "Loading", file, "Failed to load image",
+                                           "Load Error"));
+  }
+
+  // Asks for an image file to make a map of. Returns null if none was chosen,
+  // or if a map is already being opened.
+  private File chooseImage() {
+    if (dmtool.isLoading()) {
+      System.err.println("Already opening a map");
+      return null;
+    }
     final JFileChooser chooser = new JFileChooser(dmtool.getDirectory());
     final FileNameExtensionFilter filter =
       new FileNameExtensionFilter("Supported Images", ImageIO.getReaderFileSuffixes());
@@ -643,19 +625,36 @@ public class MapPanel
     dmtool.setDirectory(chooser.getCurrentDirectory());
     if (result != JFileChooser.APPROVE_OPTION) {
       System.err.println("Chose dis-approval option " + result);
-      return;
+      return null;
     }
-    try {
-      dmtool.newMap(chooser.getSelectedFile());
-      System.err.println("Loaded image \"" + chooser.getSelectedFile() + "\"");
+    return chooser.getSelectedFile();
+  }
+
+  // Switches to the open map at index, wrapping around at either end.
+  private void switchMapCommand(final int index) {
+    final int count = dmtool.getMapNames().size();
+    if (count < 2) {
+      return;
     }
-    catch (final IOException e) {
-      JOptionPane.showMessageDialog(parentWindow, "Failed to load image: " + e.getMessage(),
-                                    "Load Error", JOptionPane.ERROR_MESSAGE);
-      System.err.println("Failed to load image from \"" + chooser.getSelectedFile() + "\"");
-      e.printStackTrace();
+    // Anything selected or being drawn belongs to the map being left.
+    cancelNewRegionCommand();
+    avatarSelection.clear();
+    dmtool.switchMap(Math.floorMod(index, count));
+    detectMouseOverRegion();
+  }
+
+  private void chooseMapCommand() {
+    final List<String> names = dmtool.getMapNames();
+    if (names.size() < 2) {
       return;
     }
+    final Object choice =
+      JOptionPane.showInputDialog(parentWindow, "Switch to map:", "Switch Map",
+                                  JOptionPane.QUESTION_MESSAGE, null, names.toArray(),
+                                  names.get(dmtool.getMapIndex()));
+    if (choice != null) {
+      switchMapCommand(names.indexOf(choice));
+    }
   }
 
   private void saveCommand() {
@@ -663,16 +662,14 @@ public class MapPanel
       saveAsCommand();
       return;
     }
-    try {
-      dmtool.save(dmtool.getActiveSave());
-      System.err.println("Saved to \"" + dmtool.getActiveSave() + "\"");
-    }
-    catch (final IOException e) {
-      JOptionPane.showMessageDialog(parentWindow, "Failed to save file: " + e.getMessage(),
-                                    "Save Error", JOptionPane.ERROR_MESSAGE);
-      System.err.println("Failed to write save file \"" + dmtool.getActiveSave() + "\"");
-      e.printStackTrace();
+    if (dmtool.isLoading()) {
+      System.err.println("Not saving while a map is being opened");
+      return;
     }
+    // Saving runs in the background.
+    final File path = dmtool.getActiveSave();
+    dmtool.save(path, new ProgressDialog(parentWindow, "Saving", path, "Failed to save file",
+                                         "Save Error"));
   }
 
   private void saveAsCommand() {
@@ -697,6 +694,10 @@ public class MapPanel
   }
 
   private void openCommand() {
+    if (dmtool.isLoading()) {
+      System.err.println("Already opening a map");
+      return;
+    }
     final JFileChooser chooser = new JFileChooser(dmtool.getDirectory());
     final FileNameExtensionFilter filter =
       new FileNameExtensionFilter("Saved Maps", DMTool.SAVE_FILE_EXTENSION);
@@ -707,16 +708,9 @@ public class MapPanel
       System.err.println("Chose dis-approval option " + result);
       return;
     }
-    try {
-      dmtool.open(chooser.getSelectedFile());
-      System.err.println("Loaded \"" + chooser.getSelectedFile() + "\"");
-    }
-    catch (final IOException e) {
-      JOptionPane.showMessageDialog(parentWindow, "Failed to load file: " + e.getMessage(),
-                                    "Open Error", JOptionPane.ERROR_MESSAGE);
-      System.err.println("Failed to read save file \"" + chooser.getSelectedFile() + "\"");
-      e.printStackTrace();
-    }
+    dmtool.open(chooser.getSelectedFile(),
+                new ProgressDialog(parentWindow, "Opening", chooser.getSelectedFile(),
+                                   "Failed to load file", "Open Error"));
   }
 
   private void quitCommand() {
@@ -738,17 +732,18 @@ public class MapPanel
   }
 
   private void cancelNewRegionCommand() {
+    final Collection<Region> changed = dragging ? selectedRegions() : Collections.emptyList();
     dragging = false;
     newRegion = false;
     newArea = false;
     selectionBox = false;
     detectMouseOverRegion();
-    repaint();
+    repaint(changed);
   }
 
   private void deselectAllCommand() {
     avatarSelection.clear();
-    repaint();
+    repaintControls();
   }
 
   private void newAvatarCommand() {
@@ -762,13 +757,13 @@ public class MapPanel
       if (lh <= 5) {
         lh = 40;
       }
-      final Region r = dmtool.getRegions(isPlayer).addRegion(0, mouse.x, mouse.y, lw, lh);
+      final Region r = dmtool.editRegions().addRegion(0, mouse.x, mouse.y, lw, lh);
       r.type = Region.Type.AVATAR;
       r.symbol = result.symbol;
       r.index = dmtool.getRegions(isPlayer).getNextIndex(r.symbol);
       r.color = result.color;
+      dmtool.repaint(Collections.singletonList(r));
     }
-    dmtool.repaint();
   }
 
   private void newAreaCommand() {
@@ -799,24 +794,22 @@ public class MapPanel
     }
     final Color result = JColorChooser.showDialog(this, typeName + " Color", activeRegion.color);
     if (result != null) {
-      if (avatarSelection.containsKey(activeRegion.id)) {
-        for (final Region r : avatarSelection.values()) {
-          r.color = result;
-        }
+      dmtool.editRegions();
+      final Collection<Region> changed = selectedRegions();
+      for (final Region r : changed) {
+        r.color = result;
       }
-      else {
-        activeRegion.color = result;
-      }
-      dmtool.repaint();
+      dmtool.repaint(changed);
     }
   }
 
   private void deleteRegionCommand() {
     if (activeRegion != null) {
-      dmtool.getRegions(isPlayer).removeRegion(activeRegion);
-      avatarSelection.remove(activeRegion.id);
+      final Region r = activeRegion;
+      dmtool.editRegions().removeRegion(r);
+      avatarSelection.remove(r.id);
       activeRegion = null;
-      dmtool.repaint();
+      dmtool.repaint(Collections.singletonList(r));
     }
   }
 
@@ -825,18 +818,19 @@ public class MapPanel
       return;
     }
 
-    final Region r = dmtool.getRegions(isPlayer).duplicate(activeRegion);
+    final Region r = dmtool.editRegions().duplicate(activeRegion);
     if (!isSibling || !r.isRegion()) { // Only regions can have siblings.
-      dmtool.getRegions(isPlayer).deparent(r);
+      dmtool.editRegions().deparent(r);
     }
     detectMouseOverRegion();
-    dmtool.repaint();
+    dmtool.repaint(Collections.singletonList(r));
   }
 
   private void toggleRegionStateCommand() {
     if (activeRegion == null) {
       return;
     }
+    dmtool.editRegions();
     if (avatarSelection.containsKey(activeRegion.id)) {
       for (final Region r : avatarSelection.values()) {
         r.toggleState();
@@ -845,16 +839,21 @@ public class MapPanel
     else {
       activeRegion.toggleState();
     }
-    dmtool.repaint();
+    if (activeRegion.isRegion()) {
+      dmtool.getRegions(isPlayer).markChanged();
+    }
+    dmtool.repaint(changedByToggle());
   }
 
   private void toggleVisibilityCommand() {
     if (activeRegion == null) {
       return;
     }
+    dmtool.editRegions();
     switch (activeRegion.type) {
       case REGION:
         activeRegion.toggleRegionVisibility();
+        dmtool.getRegions(isPlayer).markChanged();
         break;
       case AVATAR:
         if (avatarSelection.containsKey(activeRegion.id)) {
@@ -870,7 +869,16 @@ public class MapPanel
         activeRegion.toggleAreaVisibility();
         break;
     }
-    dmtool.repaint();
+    dmtool.repaint(changedByToggle());
+  }
+
+  // A region's state is shared by its whole group, so toggling it changes all
+  // of the group's regions.
+  private Collection<Region> changedByToggle() {
+    if (activeRegion.isRegion()) {
+      return new ArrayList<>(activeRegion.parent.getChildren());
+    }
+    return selectedRegions();
   }
 
   private void toggleShapeCommand() {
@@ -880,8 +888,10 @@ public class MapPanel
     if (!activeRegion.isArea()) {
       return;
     }
+    dmtool.editRegions();
     activeRegion.toggleShape();
-    dmtool.repaint();
+    dmtool.getRegions(isPlayer).update(activeRegion);
+    dmtool.repaint(Collections.singletonList(activeRegion));
   }
 
   private void toggleAreaArcWidthCommand() {
@@ -892,13 +902,15 @@ public class MapPanel
       return;
     }
 
+    dmtool.editRegions();
     if (activeRegion.internalAngle == 360) {
       activeRegion.internalAngle = 46;
     }
     else {
       activeRegion.internalAngle = 360;
     }
-    dmtool.repaint();
+    dmtool.getRegions(isPlayer).update(activeRegion);
+    dmtool.repaint(Collections.singletonList(activeRegion));
   }
 
   private void detectMouseOverRegion() {
@@ -917,55 +929,30 @@ public class MapPanel
       activeRegion = null;
     }
     setCursor(Cursor.getPredefinedCursor(cursorMap.get(mouseStatus)));
-    repaint();
+    repaintControls();
   }
 
   private Region regionAt(final int x, final int y) {
     // Pick the most recently created region, preferring live avatars over
-    // dead avatars over areas over regions.
-    Region liveAvatar = null;
-    Region deadAvatar = null;
-    Region area = null;
-    Region region = null;
-    final double scale = dmtool.getScale(isPlayer);
-    for (final RegionGroup group : dmtool.getRegions(isPlayer).getGroups()) {
-      for (final Region r : group.getChildren()) {
-        if (regionContainsPoint(r, mx, my)) {
-          switch (r.type) {
-            case AVATAR:
-              if (r.isDead) {
-                deadAvatar = r;
-              }
-              else {
-                liveAvatar = r;
-              }
-              break;
-            case AREA:
-              area = r;
-              break;
-            case REGION:
-              region = r;
-              break;
-          }
-        }
+    // dead avatars over areas over regions. The index hands back candidates in
+    // that order, so the first that actually contains the point wins.
+    final double invScale = 1.0 / dmtool.getScale(isPlayer);
+    final Point p = windowToImageCoords(x, y);
+    // Allow for a window pixel of rounding in either direction.
+    final int slop = (int)Math.ceil(invScale) + 1;
+    final Rectangle area = new Rectangle(p.x - slop, p.y - slop, 2 * slop, 2 * slop);
+    for (final Region r : dmtool.getRegions(isPlayer).candidatesAt(area)) {
+      if (regionContainsPoint(r, x, y)) {
+        return r;
       }
     }
-    if (liveAvatar != null) {
-      return liveAvatar;
-    }
-    if (deadAvatar != null) {
-      return deadAvatar;
-    }
-    if (area != null) {
-      return area;
-    }
-    return region;
+    return null;
   }
 
   boolean regionContainsPoint(final Region r, final int x, final int y) {
-    final Corners c = new Corners(r);
+    final SceneRenderer.Corners c = corners(r);
     if (r.isArea() && r.shape == Region.Shape.RECTANGLE) {
-      final Polygon p = rotate(c, r.rotation);
+      final Polygon p = SceneRenderer.rotate(c, r.rotation);
       final Rectangle box = p.getBounds();
       return box.contains(new Point(x, y));
     }
@@ -974,6 +961,23 @@ public class MapPanel
     }
   }
 
+  // Where r is in the window right now, for hit testing on the event thread.
+  private SceneRenderer.Corners corners(final Region r) {
+    return new SceneRenderer.Corners(r, dmtool.getScale(isPlayer), dmtool.getOffset(isPlayer),
+                                     currentDrag());
+  }
+
+  private Scene.Drag currentDrag() {
+    if (!dragging) {
+      return null;
+    }
+    final Set<Integer> ids = new HashSet<>();
+    for (final Region r : selectedRegions()) {
+      ids.add(r.id);
+    }
+    return new Scene.Drag(ids, mx - sx, my - sy, xm, ym, wm, hm, squareDrag);
+  }
+
   Point windowToImageCoords(int x, int y) {
     final Point off = dmtool.getOffset(isPlayer);
     x -= off.x;
@@ -1011,7 +1015,7 @@ public class MapPanel
     noff.x += SCROLL_DIST * xm * value;
     noff.y += SCROLL_DIST * ym * value;
     dmtool.setOffset(noff);
-    dmtool.repaint();
+    dmtool.repaintScrolled();
   }
 
   void adjustAreaRotation(final float value) {
@@ -1022,6 +1026,7 @@ public class MapPanel
       return;
     }
 
+    dmtool.editRegions();
     final float increment = 5;
     activeRegion.rotation += (int)(value * increment);
     activeRegion.rotation %= 360;
@@ -1029,7 +1034,8 @@ public class MapPanel
       activeRegion.rotation += 360;
     }
     System.err.printf("Area rotated to %d°\n", activeRegion.rotation);
-    dmtool.repaint();
+    dmtool.getRegions(isPlayer).update(activeRegion);
+    dmtool.repaint(Collections.singletonList(activeRegion));
   }
 
   void adjustAreaInternalAngle(final float value) {
@@ -1040,6 +1046,7 @@ public class MapPanel
       return;
     }
 
+    dmtool.editRegions();
     final float increment = 5;
     activeRegion.internalAngle += (int)(value * increment);
     activeRegion.internalAngle %= 360;
@@ -1047,7 +1054,8 @@ public class MapPanel
       activeRegion.internalAngle += 360;
     }
     System.err.printf("Area internal angle adjusted to %d°\n", activeRegion.internalAngle);
-    dmtool.repaint();
+    dmtool.getRegions(isPlayer).update(activeRegion);
+    dmtool.repaint(Collections.singletonList(activeRegion));
   }
 
   void adjustColor(final float hue, final float saturation, final float brightness) {
@@ -1093,15 +1101,18 @@ public class MapPanel
                         newHSB[2]);
       newHSB[2] = oldHSB[2];
     }
+    dmtool.editRegions();
     activeRegion.color = Color.getHSBColor(newHSB[0], newHSB[1], newHSB[2]);
 
     System.err.printf("Adjusted avatar from [%d, %d, %d] to [%d, %d, %d]\n", rgb[0], rgb[1], rgb[2],
                       activeRegion.color.getRed(), activeRegion.color.getGreen(),
                       activeRegion.color.getBlue());
+    dmtool.repaint(Collections.singletonList(activeRegion));
   }
 
   private void rescale() {
-    if (dmtool.getImage(isPlayer) == null) {
+    final Dimension imageSize = dmtool.getImageSize(isPlayer);
+    if (imageSize == null) {
       imgWidth = 1;
       imgHeight = 1;
       if (!isPlayer) {
@@ -1110,8 +1121,8 @@ public class MapPanel
       return;
     }
 
-    imgWidth = dmtool.getImage(isPlayer).getWidth(this);
-    imgHeight = dmtool.getImage(isPlayer).getHeight(this);
+    imgWidth = imageSize.width;
+    imgHeight = imageSize.height;
 
     if (isPlayer) {
       return;
@@ -1141,481 +1152,190 @@ public class MapPanel
     dmtool.setScale(scale);
   }
 
-  private void drawStringInAvatarCorner(final Graphics2D g, final Region r, final String s,
-                                        final int corner) {
-    // Add indicators in the corners, at 1/3 the font size.
-    // Space from the side by the width of a narrow character in the font.
-    if (r.fontSize / 3 <= 0) {
-      return;
-    }
-
-    g.setFont(new Font(null, 0, r.fontSize / 3));
-    final FontMetrics fontMetrics = g.getFontMetrics();
-
-    final LineMetrics lineMetrics = fontMetrics.getLineMetrics(s, g);
-    final Rectangle2D bounds = fontMetrics.getStringBounds(s, g);
-    final Corners c = new Corners(r);
-    final double space = fontMetrics.charWidth(' ');
-    final double left = c.left + space;
-    final double right = c.right - bounds.getWidth() - space;
-    final double bottom = c.bottom - lineMetrics.getDescent();
-    final double top = c.top + lineMetrics.getHeight();
-
-    double x, y;
-    switch (corner) {
-      case NW_CORNER:
-        x = left;
-        y = top;
-        break;
-      case NE_CORNER:
-        x = right;
-        y = top;
-        break;
-      case SW_CORNER:
-        x = left;
-        y = bottom;
-        break;
-      case SE_CORNER:
-        x = right;
-        y = bottom;
-        break;
-      default:
-        throw new IllegalArgumentException("Not a corner: " + corner);
-    }
-    g.drawString(s, (int)x, (int)y);
+  @Override
+  public void repaint() {
+    fullRepaint = true;
+    renderThread.requestFrame();
   }
 
-  private void drawAvatar(final Graphics2D g, final Region r) {
-    if (isPlayer && !r.isAvatarVisible()) {
-      return;
-    }
-
-    final Corners c = new Corners(r);
-    final String symbol = Character.toString(r.symbol);
-    Color color = r.color;
-    if (r.isDead) {
-      color = DEAD_AVATAR_COLOR;
-    }
-
-    g.setColor(color);
-    if (r.isAvatarVisible()) {
-      g.drawRect(c.left, c.top, c.width - 1, c.height - 1);
-      g.drawRect(c.left + 1, c.top + 1, c.width - 3, c.height - 3);
-    }
-    else {
-      // Rounded rect to indicate invisible.
-      g.drawRoundRect(c.left, c.top, c.width - 1, c.height - 1, c.width / 2, c.height / 2);
-    }
-
-    // Calculate & cache the font when necessary.
-    int trySize = (Math.min(c.width, c.height));
-    int lastChange = 0;
-    if (r.lastZoomLevel != dmtool.getScale(isPlayer)) {
-      r.fontSize = null;
-      r.lastZoomLevel = dmtool.getScale(isPlayer);
-    }
-    while (r.fontSize == null && trySize > 1) {
-      g.setFont(new Font(null, 0, trySize));
-      final FontMetrics fontMetrics = g.getFontMetrics();
-      final Rectangle2D bounds = fontMetrics.getStringBounds(symbol, g);
-      if (bounds.getWidth() > c.width || bounds.getHeight() > c.height) {
-        // Too big, try the next size down. Could do a full binary search now
-        // that we know what region to look in, but performance hasn't been an
-        // issue yet.
-        trySize--;
-        lastChange = -1;
-        continue;
-      }
-      if (bounds.getWidth() < c.width && bounds.getHeight() < c.height) {
-        // Too small. Unless we just shrunk to this size because it was too
-        // big, double the size (makes for a faster search).
-        if (lastChange == -1) {
-          r.fontSize = trySize;
-          break;
-        }
-        trySize *= 2;
-        lastChange = 1;
-        continue;
-      }
-
-      // One dimension must be equal, so don't change any more.
-      r.fontSize = trySize;
-      break;
-    }
-    if (r.fontSize == null) {
-      // If unable to choose a size, just use 1.
-      r.fontSize = 1;
-    }
-
-    // Almost center the symbol in the region, adjusting for descent. Push it a
-    // little up to better fit symbols at the bottom.
-    g.setFont(new Font(null, 0, r.fontSize));
-    final FontMetrics fontMetrics = g.getFontMetrics();
-    final LineMetrics lineMetrics = fontMetrics.getLineMetrics(symbol, g);
-    final Rectangle2D bounds = fontMetrics.getStringBounds(symbol, g);
-    final double x = c.left + (c.width - bounds.getWidth()) / 2;
-    final double y =
-      c.bottom - lineMetrics.getDescent() - (c.height - bounds.getHeight()) / 2 - c.height * 0.1;
-    g.drawString(Character.toString(r.symbol), (int)x, (int)y);
-
-    drawStringInAvatarCorner(g, r, Integer.toString(r.index), SE_CORNER);
-    if (!r.isAvatarVisible()) {
-      drawStringInAvatarCorner(g, r, "!v", SW_CORNER);
+  /**
+   * Recomposes only the parts of the frame covered by the changed regions, both
+   * where they were last drawn and where they are now.
+   */
+  void repaint(final Collection<Region> changed) {
+    for (final Region r : changed) {
+      damagedRegions.put(r.id, r);
     }
+    renderThread.requestFrame();
+  }
 
-    if (r.isDead) {
-      // Draw an X. Tried drawing a skull glyph, but it disappears below
-      // some size threshold on MacOS.
-      g.drawLine(c.left, c.top, c.right, c.bottom);
-      g.drawLine(c.left, c.bottom, c.right, c.top);
-    }
+  /**
+   * Redraws after the view has been scrolled. The renderer sees that only the
+   * offset changed, and shifts the last frame rather than recomposing it.
+   */
+  void repaintScrolled() {
+    renderThread.requestFrame();
   }
 
-  private Color withAlpha(final Color c, final int alpha) {
-    return new Color(c.getRed(), c.getGreen(), c.getBlue(), alpha);
+  /**
+   * Redraws the DM's handles and highlights over the last frame, without
+   * recomposing any of it.
+   */
+  void repaintControls() {
+    renderThread.requestFrame();
   }
 
-  private Polygon rotate(final Corners c, final float degrees) {
-    // Rotates around the center of the rectangle.
-    final int ox = c.left + c.width / 2;
-    final int oy = c.top + c.height / 2;
-
-    final int x1 = c.left - ox;
-    final int y1 = c.top - oy;
-    final int x2 = x1 + c.width;
-    final int y2 = y1 + c.height;
-
-    // Manually applying the rotation matrix. Note that the resulting rectangle
-    // cannot be represented simply as x,y width,height any more; we need four
-    // distinct corner coordinates.
-    // | cos θ, -sin θ |
-    // | sin θ, cos θ |
-    final double angle = Math.toRadians(degrees);
-    final double sin = Math.sin(angle);
-    final double cos = Math.cos(angle);
-    final Polygon p = new Polygon();
-    p.addPoint((int)(x1 * cos - y1 * sin), (int)(x1 * sin + y1 * cos));
-    p.addPoint((int)(x1 * cos - y2 * sin), (int)(x1 * sin + y2 * cos));
-    p.addPoint((int)(x2 * cos - y2 * sin), (int)(x2 * sin + y2 * cos));
-    p.addPoint((int)(x2 * cos - y1 * sin), (int)(x2 * sin + y1 * cos));
-    p.translate(ox, oy);
-    return p;
+  /**
+   * Draws a frame even though nothing has changed, so that a newly added
+   * FrameSink is sent the current one.
+   */
+  void requestFrame() {
+    renderThread.requestFrame();
   }
 
-  private void drawArea(final Graphics2D g, final Region r) {
-    if (isPlayer && !r.isAreaVisible()) {
-      return;
+  // The regions that a command or drag applies to: the whole avatar selection
+  // if the active region is part of it.
+  private Collection<Region> selectedRegions() {
+    if (activeRegion == null) {
+      return Collections.emptyList();
     }
-
-    final Corners c = new Corners(r);
-    final Color translucent = withAlpha(r.color, 128);
-    g.setColor(translucent);
-    g.setComposite(AlphaComposite.SrcOver);
-    // TODO: Find a way to indicate visible/invisible.
-    switch (r.shape) {
-      case RECTANGLE:
-        final Polygon p = rotate(c, r.rotation);
-        g.fillPolygon(p);
-        g.setColor(r.color);
-        g.drawPolygon(p);
-        break;
-      case ARC:
-        final Arc2D.Float s =
-          new Arc2D.Float(c.left, c.top, c.width, c.height, r.rotation, r.internalAngle, Arc2D.PIE);
-
-        // We want the arc to take up the entire frame, but due to the internal
-        // angle, it may not. Adjust the frame by the magnitude of the
-        // difference so the arc takes up the whole thing.
-        // TODO: Corners reach a little out of the frame, keep them fully
-        // inside.
-        final Rectangle2D.Float b = (Rectangle2D.Float)s.getBounds2D();
-        final float nx1 = c.left + 2 * (c.left - b.x);
-        final float ny1 = c.top + 2 * (c.top - b.y);
-        final float nx2 = c.right + 2 * (c.right - (b.x + b.width));
-        final float ny2 = c.bottom + 2 * (c.bottom - (b.y + b.height));
-        s.setFrame(nx1, ny1, nx2 - nx1, ny2 - ny1);
-        g.fill(s);
-        g.setColor(r.color);
-        g.draw(s);
+    if (avatarSelection.containsKey(activeRegion.id)) {
+      return new ArrayList<>(avatarSelection.values());
     }
+    return Collections.singletonList(activeRegion);
   }
 
-  private void drawBaseImage(final Graphics2D g) {
-    // Draw areas, then dead avatars, then live.
-    final Collection<Region> areas = new ArrayList<>();
-    final Collection<Region> deadAvatars = new ArrayList<>();
-    final Collection<Region> liveAvatars = new ArrayList<>();
-    for (final RegionGroup group : dmtool.getRegions(isPlayer).getGroups()) {
-      for (final Region r : group.getChildren()) {
-        if (r.isArea()) {
-          areas.add(r);
-        }
-        if (r.isAvatar()) {
-          if (r.isDead) {
-            deadAvatars.add(r);
-          }
-          else {
-            liveAvatars.add(r);
-          }
-        }
-      }
-    }
+  private boolean isInModel(final Region r) {
+    return r.parent != null && r.parent.children.get(r.id) == r;
+  }
 
-    for (final Region r : areas) {
-      drawArea(g, r);
-    }
-    for (final Region r : deadAvatars) {
-      drawAvatar(g, r);
-    }
-    for (final Region r : liveAvatars) {
-      drawAvatar(g, r);
+  // The regions to snapshot for the next scene. A new snapshot is only taken
+  // after the regions are edited, so drags, scrolling, and hovering share one.
+  private Regions snapshotRegions() {
+    final Regions live = dmtool.getRegions(isPlayer);
+    if (live != snapshotSource || dmtool.getEditCount() != snapshotEdits) {
+      snapshot = live.snapshot();
+      snapshotSource = live;
+      snapshotEdits = dmtool.getEditCount();
     }
+    return snapshot;
   }
 
-  private Image safeGetSubimage(final BufferedImage img, final Rectangle out, int x, int y, int w,
-                                int h) {
-    if (x < 0) {
-      w += x;
-      x = 0;
-    }
-    if (y < 0) {
-      h += y;
-      y = 0;
-    }
-    if (x + w >= img.getWidth()) {
-      w = img.getWidth() - x - 1;
-    }
-    if (y + h >= img.getHeight()) {
-      h = img.getHeight() - y - 1;
-    }
-    if (w <= 0 || h <= 0) {
-      return null;
-    }
-    out.x = x;
-    out.y = y;
-    out.width = w;
-    out.height = h;
-    try {
-      return img.getSubimage(x, y, w, h);
-    }
-    catch (final RasterFormatException e) {
-      e.printStackTrace();
+  /**
+   * Captures everything the render thread needs to draw the next frame, and
+   * hands over the damage collected since the last one. Must be called on the
+   * event dispatch thread. Returns null if there is nothing to draw on yet.
+   */
+  Scene captureScene() {
+    if (getWidth() <= 0 || getHeight() <= 0 || getBufferStrategy() == null) {
       return null;
     }
-  }
-
-  // Hides/shades areas of the screen that are not being shared.
-  private void drawVisibilityMask(final Rectangle bounds, final BufferedImage preAvatarImg,
-                                  final BufferedImage postAvatarImg, final Graphics2D graphics) {
-    // Draw into a fresh image so we don't over-darken any areas with
-    // overlapping regions.
-    final BufferedImage overlay =
-      new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
-    final Graphics2D g = overlay.createGraphics();
-
-    // Black out the entire image.
-    g.setComposite(AlphaComposite.Src);
-    g.setColor(emptyMaskColor);
-    g.fillRect(0, 0, bounds.width, bounds.height);
-
-    // Collect the regions to draw.
-    final ArrayList<RegionGroup> drawOrder =
-      new ArrayList<>(dmtool.getRegions(isPlayer).getGroups().size());
-    for (final RegionGroup group : dmtool.getRegions(isPlayer).getGroups()) {
-      drawOrder.add(group);
-    }
-    drawOrder.sort((final RegionGroup a, final RegionGroup b) -> {
-      // Draw the hidden regions first.
-      if (a.isVisible() != b.isVisible()) {
-        if (!a.isVisible()) {
-          return -1;
-        }
-        return 1;
-      }
-      // Then the fogged regions.
-      if (a.isFogged() != b.isFogged()) {
-        if (a.isFogged()) {
-          return -1;
-        }
-        return 1;
-      }
-      // And finally, the visible regions.
-      return 0;
-    });
-
-    // Draw the regions by copying from the pre/post avatar image.
-    for (final RegionGroup group : drawOrder) {
-      for (final Region r : group.getChildren()) {
-        if (!r.isRegion()) {
-          // These are drawn elsewhere.
-          continue;
-        }
-
-        g.setComposite(AlphaComposite.Src);
-        final Corners c = new Corners(r);
-        if (r.isRegionVisible()) {
-          // Make visible regions transparent, for both the DM and the player.
-          final Rectangle rect = new Rectangle();
-          final Image img = safeGetSubimage(postAvatarImg, rect, c.left, c.top, c.width, c.height);
-          if (img != null) {
-            g.drawImage(img, rect.x, rect.y, rect.width, rect.height, this);
-          }
-          // Leave the region fully transparent.
-          g.setColor(new Color(0, 0, 0, 0));
-        }
-        else if (r.isRegionFogged()) {
-          if (isPlayer) {
-            // Remove avatars from this region for players.
-            final Rectangle rect = new Rectangle();
-            final Image img = safeGetSubimage(preAvatarImg, rect, c.left, c.top, c.width, c.height);
-            if (img != null) {
-              g.drawImage(img, rect.x, rect.y, rect.width, rect.height, this);
-            }
-          }
-          // Indicate the region is fogged. Darkens for players.
-          g.setColor(foggedMaskColor);
-        }
-        else { // Must be hidden.
-          if (isPlayer) {
-            // Players can't see this at all.
-            continue;
-          }
-
-          // Remove the dark mask over the area.
-          final Rectangle rect = new Rectangle();
-          final Image img = safeGetSubimage(postAvatarImg, rect, c.left, c.top, c.width, c.height);
-          if (img != null) {
-            g.drawImage(img, rect.x, rect.y, rect.width, rect.height, this);
+    final Scene.Builder scene = new Scene.Builder(isPlayer);
+    scene.size = getSize();
+    scene.pyramid = dmtool.getPyramid(isPlayer);
+    scene.offset = new Point(dmtool.getOffset(isPlayer));
+    scene.scale = dmtool.getScale(isPlayer);
+    scene.quality = dmtool.getQuality(isPlayer);
+    scene.paused = dmtool.isPaused();
+    scene.regions = snapshotRegions();
+    scene.drag = currentDrag();
+
+    if (!isPlayer && activeRegion != null) {
+      final Region active = scene.regions.get(activeRegion.id);
+      // A region being drawn is not part of the model yet.
+      scene.active = (active != null) ? active : activeRegion.snapshot(null);
+      scene.activeSelected = avatarSelection.containsKey(activeRegion.id);
+      if (!scene.activeSelected && activeRegion.parent != null) {
+        for (final Region r : activeRegion.parent.getChildren()) {
+          final Region sibling = scene.regions.get(r.id);
+          if (r != activeRegion && sibling != null) {
+            scene.siblings.add(sibling);
           }
-          g.setColor(hiddenMaskColor);
         }
-
-        g.setComposite(AlphaComposite.SrcOver);
-        g.fillRect(c.left, c.top, c.width, c.height);
       }
     }
-
-    if (activeRegion != null) {
-      // Remove the dark mask over the area.
-      if (selectionBox) {
-        g.setColor(selectionMaskColor);
-      }
-      else {
-        g.setColor(activeMaskColor);
-      }
-      final Corners c = new Corners(activeRegion);
-      if (activeRegion.isArea() && activeRegion.shape == Region.Shape.RECTANGLE) {
-        final Polygon p = rotate(c, activeRegion.rotation);
-        final Rectangle box = p.getBounds();
-        g.fillRect(box.x, box.y, box.width, box.height);
-      }
-      else {
-        g.fillRect(c.left, c.top, c.width, c.height);
+    if (!isPlayer) {
+      scene.selectionBox = selectionBox;
+      for (final Region r : avatarSelection.values()) {
+        final Region selected = scene.regions.get(r.id);
+        if (selected != null) {
+          scene.selection.add(selected);
+        }
       }
     }
 
-    graphics.drawImage(overlay, null, this);
+    scene.fullRepaint = fullRepaint;
+    fullRepaint = false;
+    for (final Region r : damagedRegions.values()) {
+      scene.damage.put(r.id, r.isRegion());
+    }
+    damagedRegions.clear();
+    scene.thaw = thaw;
+    thaw = false;
+    return scene.build();
   }
 
   @Override
   public void paint(final Graphics og) {
-    // Capture the pre-avatar image, which will be used for filling in "fogged"
-    // regions.
-    final Rectangle b = og.getClipBounds();
-    final BufferedImage preAvatarImg =
-      new BufferedImage(b.width, b.height, BufferedImage.TYPE_INT_ARGB);
-    {
-      final Graphics2D g = preAvatarImg.createGraphics();
-      g.setComposite(AlphaComposite.Src);
-      g.setColor(Color.black); // Black mat in case the image is small.
-      g.fillRect(0, 0, b.width, b.height);
-
-      final Image img = dmtool.getImage(isPlayer);
-      if (img != null) {
-        final AffineTransform transform = new AffineTransform();
-        final Point off = dmtool.getOffset(isPlayer);
-        transform.translate(off.x, off.y);
-        final double scale = dmtool.getScale(isPlayer);
-        transform.scale(scale, scale);
-        g.drawImage(img, transform, this);
-      }
-    }
-
-    // Also capture the post-avatar image, for drawing visible regions.
-    final BufferedImage postAvatarImg =
-      new BufferedImage(b.width, b.height, BufferedImage.TYPE_INT_ARGB);
-    {
-      final Graphics2D g = postAvatarImg.createGraphics();
-      g.setComposite(AlphaComposite.Src);
-      g.drawImage(preAvatarImg, null, this);
-      drawBaseImage(g);
-    }
-
-    final Graphics2D g = (Graphics2D)getBufferStrategy().getDrawGraphics();
-    try {
-      // Compose the pre/post avatar regions according to visibility.
-      g.drawImage(postAvatarImg, null, this);
-      drawVisibilityMask(b, preAvatarImg, postAvatarImg, g);
-      if (isPlayer) {
-        return;
-      }
+    // Drawing happens on the render thread. Whatever needs to be recomposed has
+    // already been recorded, so this just makes sure a frame gets shown.
+    renderThread.requestFrame();
+  }
 
-      // Draw the DM's view in addition to that.
-      for (final Region r : avatarSelection.values()) {
-        if (r == activeRegion) {
-          drawCorners(g, ACTIVE_SELECTION_COLOR, r);
-        }
-        else {
-          drawCorners(g, SELECTION_COLOR, r);
-        }
-      }
-      if (activeRegion != null && !avatarSelection.containsKey(activeRegion.id)) {
-        if (activeRegion.parent != null) {
-          for (final Region r : activeRegion.parent.getChildren()) {
-            if (r == activeRegion) {
-              continue;
-            }
-            drawCorners(g, LOCKED_HANDLE_COLOR, r);
-          }
+  /**
+   * Draws a frame of the given scene to the screen. Only called on the render
+   * thread.
+   */
+  void render(final Scene scene) {
+    // The frame is reused between frames, and only re-allocated when the window
+    // size changes. It keeps everything but the DM's controls, so the renderer
+    // only recomposes the damaged parts.
+    renderStats.beginFrame();
+    final BufferedImage frame = frameBuffers.get("frame", scene.size.width, scene.size.height);
+    final boolean changed = renderer.render(scene, frame);
+    show(scene, frame);
+    if (isPlayer) {
+      // Other displays and streams share this frame rather than composing
+      // their own. They are only sent it again once it changes, or once
+      // another is added.
+      final int sinksAdded = dmtool.getPlayerSinksAdded();
+      if (changed || sinksAdded != offeredToSinksAdded) {
+        offeredToSinksAdded = sinksAdded;
+        for (final FrameSink sink : dmtool.getPlayerSinks()) {
+          sink.offer(frame);
         }
-        drawCorners(g, HANDLE_COLOR, activeRegion);
       }
+    }
+    frameBuffers.endFrame();
+    renderStats.endFrame(scene.regions.size());
+  }
 
-      if (dmtool.isPaused()) {
-        // Rotate slowly between red, white, red, black, ...
-        final int t = (int)(System.currentTimeMillis() / 3 % 1024);
-        int red;
-        int gb;
-        if (t < 256) { // 0 - 255
-          // Move from black to red.
-          red = t; // 0-255
-          gb = 0;
-        }
-        else if (t < 512) { // 256 - 511
-          // Move from red to white.
-          red = 255;
-          gb = t - 256; // 0 - 255
-        }
-        else if (t < 768) { // 512 - 768
-          // Move from white to red.
-          red = 255;
-          gb = 255 - (t - 512); // 255 - (0 - 255) = 0 - 255
+  // Puts the composed frame, and the DM's controls over it, on the screen.
+  private void show(final Scene scene, final BufferedImage frame) {
+    final long start = System.nanoTime();
+    long controls = 0;
+    final BufferStrategy strategy = getBufferStrategy();
+    do {
+      do {
+        final Graphics2D g = (Graphics2D)strategy.getDrawGraphics();
+        try {
+          g.drawImage(frame, null, this);
+          if (!isPlayer) {
+            final long controlsStart = System.nanoTime();
+            renderer.drawControls(g, scene);
+            controls += System.nanoTime() - controlsStart;
+          }
         }
-        else { // 768 - 1023
-          // Move from red to black.
-          red = 255 - (t - 768); // 255 - (0 - 255) = 0 - 255
-          gb = 0;
+        finally {
+          g.dispose();
         }
-
-        g.setColor(new Color(red, gb, gb, 128));
-        g.setFont(new Font(null, 0, 50));
-        g.drawString("PAUSED", 25, 50);
-      }
-    }
-    finally {
-      g.dispose();
-      getBufferStrategy().show();
+      } while (strategy.contentsRestored());
+      strategy.show();
+    } while (strategy.contentsLost());
+    if (!isPlayer) {
+      renderStats.addTime(RenderStats.Stage.CONTROLS, controls);
     }
+    renderStats.addTime(RenderStats.Stage.PRESENT, System.nanoTime() - start - controls);
   }
 
   @Override
@@ -1623,50 +1343,10 @@ public class MapPanel
     paint(g);
   }
 
-  private void drawCorners(final Graphics2D g, final Color color, final Region r) {
-    final int hs = HANDLE_SIZE;
-    final int hhs = HANDLE_SIZE / 2;
-
-    final Corners c = new Corners(r);
-    int left;
-    int top;
-    int right;
-    int bottom;
-    int midX;
-    int midY;
-    if (r.isArea() && r.shape == Region.Shape.RECTANGLE) {
-      final Polygon p = rotate(c, r.rotation);
-      final Rectangle box = p.getBounds();
-      left = box.x;
-      top = box.y;
-      right = box.x + box.width;
-      bottom = box.y + box.height;
-      midX = box.x + box.width / 2;
-      midY = box.y + box.height / 2;
-    }
-    else {
-      left = c.left;
-      top = c.top;
-      right = c.right;
-      bottom = c.bottom;
-      midX = c.midX;
-      midY = c.midY;
-    }
-
-    drawHandle(g, color, left, top); // Upper-left.
-    drawHandle(g, color, right - hs, top); // Upper-right.
-    drawHandle(g, color, left, bottom - hs); // Lower-left.
-    drawHandle(g, color, right - hs, bottom - hs); // Lower-right.
-    drawHandle(g, color, midX - hhs, top); // Top.
-    drawHandle(g, color, midX - hhs, bottom - hs); // Bottom.
-    drawHandle(g, color, left, midY - hhs); // Left.
-    drawHandle(g, color, right - hs, midY - hhs); // Right.
-  }
-
   private int determineMouseStatus(final Region r) {
-    final double min = HANDLE_SIZE * 2;
+    final double min = SceneRenderer.HANDLE_SIZE * 2;
 
-    final Corners c = new Corners(r);
+    final SceneRenderer.Corners c = corners(r);
 
     int left;
     int top;
@@ -1675,7 +1355,7 @@ public class MapPanel
     int midX;
     int midY;
     if (r.isArea() && r.shape == Region.Shape.RECTANGLE) {
-      final Polygon p = rotate(c, r.rotation);
+      final Polygon p = SceneRenderer.rotate(c, r.rotation);
       final Rectangle box = p.getBounds();
       left = box.x;
       top = box.y;
@@ -1725,9 +1405,4 @@ public class MapPanel
     final double dy = y - my;
     return Math.sqrt(dx * dx + dy * dy);
   }
-
-  private void drawHandle(final Graphics2D g, final Color color, final int x, final int y) {
-    g.setColor(color);
-    g.fillRect(x, y, HANDLE_SIZE, HANDLE_SIZE);
-  }
 }
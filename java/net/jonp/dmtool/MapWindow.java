@@ -7,9 +7,11 @@ import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.Collection;
 
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
+import javax.swing.WindowConstants;
 
 public class MapWindow
   extends JFrame {
@@ -29,6 +31,8 @@ public class MapWindow
       add(mapPanel);
       pack();
 
+      // Closing quits, which may wait for a save first.
+      setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
       addWindowListener(new WindowAdapter() {
         @Override
         public void windowClosing(final WindowEvent e) {
@@ -44,7 +48,7 @@ public class MapWindow
           // Lock the window sizes together.
           final MapWindow other = parent.getWindow(!isPlayer);
           final Dimension size = getSize();
-          if (other.getSize().equals(size)) {
+          if (other == null || other.getSize().equals(size)) {
             return;
           }
           // On KDE, half-screen maximize bounces the window size by a few
@@ -75,4 +79,16 @@ public class MapWindow
     super.repaint();
     mapPanel.repaint();
   }
+
+  public void repaint(final Collection<Region> changed) {
+    mapPanel.repaint(changed);
+  }
+
+  public void repaintScrolled() {
+    mapPanel.repaintScrolled();
+  }
+
+  public void requestFrame() {
+    mapPanel.requestFrame();
+  }
 }
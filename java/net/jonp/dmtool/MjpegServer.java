@@ -0,0 +1,218 @@
+package net.jonp.dmtool;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the player view as an MJPEG stream on localhost, for a browser or OBS
+ * to show instead of sharing the Player View window.
+ *
+ * http://localhost:PORT/ is a page showing the stream, and
+ * http://localhost:PORT/stream is the stream itself.
+ *
+ * Frames are handed over through a single slot: offering a frame replaces any
+ * frame the encoder has not started on yet, so neither a slow encoder nor a
+ * slow client ever holds up the render thread. Each client is sent the newest
+ * encoded frame whenever it is ready for one, skipping any it was too slow for.
+ */
+public class MjpegServer
+  implements FrameSink {
+  private static final float JPEG_QUALITY = 0.85f;
+  private static final String BOUNDARY = "dmtoolframe";
+  private static final String INDEX =
+    "<!DOCTYPE html>\n<html><head><title>Player View</title></head>\n" +
+    "<body style=\"margin:0;background:black\">\n" +
+    "<img src=\"/stream\" style=\"width:100vw;height:100vh;object-fit:contain\">\n" +
+    "</body></html>\n";
+
+  private final HttpServer server;
+  private final Thread encoder;
+
+  // The frame offered last, and whether the encoder has taken it yet. The
+  // render thread copies into back and then swaps it with pending, so copying
+  // needs no lock. Guarded by this.
+  private BufferedImage back;
+  private BufferedImage pending;
+  private boolean fresh = false;
+  private int clients = 0;
+  private long offered = 0;
+  private long dropped = 0;
+
+  // The newest encoded frame, numbered so clients can tell when it changes.
+  // Guarded by this.
+  private byte[] jpeg;
+  private long sequence = 0;
+
+  /** Starts serving on the given port, on the loopback interface only. */
+  public MjpegServer(final int port)
+    throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/", this::serveIndex);
+    server.createContext("/stream", this::serveStream);
+    // Each client holds a thread for as long as it watches.
+    final ExecutorService executor = Executors.newCachedThreadPool((r) -> {
+      final Thread t = new Thread(r, "MJPEG client");
+      t.setDaemon(true);
+      return t;
+    });
+    server.setExecutor(executor);
+    server.start();
+
+    encoder = new Thread(this::encodeFrames, "MJPEG encoder");
+    encoder.setDaemon(true);
+    encoder.start();
+    System.err.println("Streaming the player view at http://localhost:" + port + "/");
+  }
+
+  @Override
+  public void offer(final BufferedImage frame) {
+    BufferedImage copy;
+    synchronized (this) {
+      copy = back;
+      back = null;
+    }
+    if (copy == null || copy.getWidth() != frame.getWidth() ||
+        copy.getHeight() != frame.getHeight()) {
+      // JPEG has no alpha, and the frame is opaque anyway.
+      copy = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_INT_RGB);
+    }
+    final Graphics2D g = copy.createGraphics();
+    g.setComposite(AlphaComposite.Src);
+    g.drawImage(frame, 0, 0, null);
+    g.dispose();
+
+    synchronized (this) {
+      offered++;
+      if (fresh) {
+        dropped++;
+      }
+      back = pending;
+      pending = copy;
+      fresh = true;
+      notifyAll();
+    }
+  }
+
+  private void encodeFrames() {
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    final ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(JPEG_QUALITY);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    BufferedImage frame = null;
+    while (true) {
+      synchronized (this) {
+        // Hand back the frame just encoded, for the render thread to reuse.
+        if (frame != null && back == null) {
+          back = frame;
+        }
+        try {
+          // Only encode while someone is watching.
+          while (!fresh || clients == 0) {
+            wait();
+          }
+        }
+        catch (final InterruptedException e) {
+          return;
+        }
+        frame = pending;
+        pending = null;
+        fresh = false;
+      }
+
+      bytes.reset();
+      try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+        writer.setOutput(out);
+        writer.write(null, new IIOImage(frame, null, null), param);
+      }
+      catch (final IOException e) {
+        System.err.println("Failed to encode a frame for streaming: " + e);
+        continue;
+      }
+
+      synchronized (this) {
+        jpeg = bytes.toByteArray();
+        sequence++;
+        notifyAll();
+      }
+    }
+  }
+
+  private void serveIndex(final HttpExchange exchange)
+    throws IOException {
+    final byte[] body = INDEX.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private void serveStream(final HttpExchange exchange)
+    throws IOException {
+    exchange.getResponseHeaders().set("Content-Type",
+                                      "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+    exchange.sendResponseHeaders(200, 0);
+
+    synchronized (this) {
+      clients++;
+      // Whatever was drawn last may never have been encoded.
+      if (pending != null && jpeg == null) {
+        fresh = true;
+      }
+      notifyAll();
+    }
+    System.err.println("Stream client connected from " + exchange.getRemoteAddress());
+
+    long sent = 0;
+    try (OutputStream out = exchange.getResponseBody()) {
+      while (true) {
+        byte[] next;
+        synchronized (this) {
+          while (sequence == sent) {
+            wait();
+          }
+          next = jpeg;
+          sent = sequence;
+        }
+        out.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " +
+                   next.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(next);
+        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+      }
+    }
+    catch (final IOException | InterruptedException e) {
+      // The client went away.
+    }
+    finally {
+      synchronized (this) {
+        clients--;
+        System.err.println("Stream client disconnected from " + exchange.getRemoteAddress() +
+                           "; " + dropped + " of " + offered +
+                           " frames dropped before encoding so far");
+      }
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,319 @@
+package net.jonp.dmtool;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes images as PNGs using every core. The image is split into strips of
+ * rows, which are filtered and deflated as separate fork-join tasks, then
+ * joined into a single zlib stream, the way pigz does: each strip but the last
+ * ends on a byte boundary, with a sync flush, and starts with the end of the
+ * strip before it as its dictionary, so the result compresses almost as well
+ * as one deflated whole.
+ *
+ * An image too small to be worth splitting, such as a saved tile, is encoded
+ * as one strip, in the calling task, so that many can be encoded at once
+ * without the cost of forking each one's strips.
+ *
+ * Images are written as 8-bit RGB, or RGBA if they have alpha.
+ */
+public class ParallelPngEncoder {
+  // As ImageIO's PNG writer does by default.
+  private static final int COMPRESSION_LEVEL = 4;
+
+  // Strips are at least this many bytes, before filtering, so each task has
+  // enough work to be worth forking.
+  private static final int MIN_STRIP_BYTES = 256 * 1024;
+
+  // Images smaller than this, before filtering, are encoded as one strip.
+  private static final long MIN_SPLIT_BYTES = 4L * 1024 * 1024;
+
+  // The most a deflate stream can look back.
+  private static final int WINDOW_SIZE = 32 * 1024;
+
+  // The filter types rows may be given.
+  private static final int SUB = 1;
+  private static final int PAETH = 4;
+
+  private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+  private ParallelPngEncoder() {
+  }
+
+  /**
+   * Returns img encoded as a PNG, blocking until it is. The strips are encoded
+   * on the fork-join pool the caller is running in, if any, and on the common
+   * pool otherwise; the caller helps.
+   */
+  public static byte[] encode(final BufferedImage img) {
+    return task(img).invoke();
+  }
+
+  /**
+   * Returns a task that encodes img as a PNG, to be forked and later joined, so
+   * that several images can be encoded at once.
+   */
+  public static ForkJoinTask<byte[]> task(final BufferedImage img) {
+    return new ImageTask(img);
+  }
+
+  private static class ImageTask
+    extends RecursiveTask<byte[]> {
+    private static final long serialVersionUID = 1L;
+
+    private final BufferedImage img;
+
+    ImageTask(final BufferedImage img) {
+      this.img = img;
+    }
+
+    @Override
+    protected byte[] compute() {
+      final int width = img.getWidth();
+      final int height = img.getHeight();
+      final int channels = (img.getColorModel().hasAlpha() ? 4 : 3);
+      final int rowBytes = width * channels + 1; // With the filter type.
+      final int rowsPerStrip = ((long)rowBytes * height < MIN_SPLIT_BYTES ? height
+                                  : Math.max(1, MIN_STRIP_BYTES / rowBytes));
+
+      final List<StripTask> strips = new ArrayList<>();
+      for (int y = 0; y < height; y += rowsPerStrip) {
+        strips.add(new StripTask(img, channels, y, Math.min(rowsPerStrip, height - y),
+                                 y + rowsPerStrip >= height));
+      }
+      if (strips.size() == 1) {
+        strips.get(0).invoke();
+      }
+      else {
+        ForkJoinTask.invokeAll(strips);
+      }
+
+      try {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(SIGNATURE);
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(width);
+        ihdr.writeInt(height);
+        ihdr.writeByte(8); // Bits per channel.
+        ihdr.writeByte(channels == 4 ? 6 : 2); // RGBA or RGB.
+        ihdr.writeByte(0); // Deflate.
+        ihdr.writeByte(0); // Adaptive filtering.
+        ihdr.writeByte(0); // Not interlaced.
+        writeChunk(out, "IHDR", header.toByteArray());
+
+        // The zlib header, then each strip's deflated data as an IDAT chunk of
+        // its own, then the checksum of all the filtered data.
+        final Adler32 adler = new Adler32();
+        writeChunk(out, "IDAT", new byte[] {0x78, 0x5e});
+        for (final StripTask strip : strips) {
+          final Strip done = strip.join();
+          adler.update(done.filtered);
+          writeChunk(out, "IDAT", done.deflated);
+        }
+        final int checksum = (int)adler.getValue();
+        writeChunk(out, "IDAT", new byte[] {(byte)(checksum >>> 24), (byte)(checksum >>> 16),
+                                            (byte)(checksum >>> 8), (byte)checksum});
+        writeChunk(out, "IEND", new byte[0]);
+        return bytes.toByteArray();
+      }
+      catch (final IOException e) {
+        // Only written to memory.
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private static void writeChunk(final DataOutputStream out, final String type, final byte[] data)
+    throws IOException {
+    final byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+    final CRC32 crc = new CRC32();
+    crc.update(name);
+    crc.update(data);
+    out.writeInt(data.length);
+    out.write(name);
+    out.write(data);
+    out.writeInt((int)crc.getValue());
+  }
+
+  // A strip's rows filtered, with a filter type before each, and deflated.
+  private static class Strip {
+    final byte[] filtered;
+    final byte[] deflated;
+
+    Strip(final byte[] filtered, final byte[] deflated) {
+      this.filtered = filtered;
+      this.deflated = deflated;
+    }
+  }
+
+  private static class StripTask
+    extends RecursiveTask<Strip> {
+    private static final long serialVersionUID = 1L;
+
+    private final BufferedImage img;
+    private final int channels;
+    private final int y, rows;
+    private final boolean last;
+
+    StripTask(final BufferedImage img, final int channels, final int y, final int rows,
+              final boolean last) {
+      this.img = img;
+      this.channels = channels;
+      this.y = y;
+      this.rows = rows;
+      this.last = last;
+    }
+
+    @Override
+    protected Strip compute() {
+      final int width = img.getWidth();
+      final int stride = width * channels;
+      final int[] argb = new int[width];
+
+      // The row above the strip is filtered against, and the end of the strip
+      // above is deflated against, so both are taken from the image again
+      // rather than waiting for the strip above.
+      byte[] prior = new byte[stride];
+      byte[] dictionary = null;
+      if (y > 0) {
+        final int above = Math.max(1, WINDOW_SIZE / (stride + 1) + 1);
+        final int first = Math.max(0, y - above);
+        final byte[] before = filter(first, y - first, first > 0 ? row(first - 1, argb)
+                                                                : new byte[stride], argb);
+        dictionary = Arrays.copyOfRange(before, Math.max(0, before.length - WINDOW_SIZE),
+                                        before.length);
+        prior = row(y - 1, argb);
+      }
+      final byte[] filtered = filter(y, rows, prior, argb);
+
+      final Deflater deflater = new Deflater(COMPRESSION_LEVEL, /* nowrap = */ true);
+      try {
+        if (dictionary != null) {
+          deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(filtered);
+        if (last) {
+          deflater.finish();
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(filtered.length / 2 + 64);
+        final byte[] buffer = new byte[64 * 1024];
+        final int flush = (last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        while (true) {
+          final int n = deflater.deflate(buffer, 0, buffer.length, flush);
+          out.write(buffer, 0, n);
+          // A sync flush is done once it leaves room in the buffer.
+          if (last ? deflater.finished() : n < buffer.length) {
+            break;
+          }
+        }
+        return new Strip(filtered, out.toByteArray());
+      }
+      finally {
+        deflater.end();
+      }
+    }
+
+    // Returns one row of the image as RGB or RGBA bytes.
+    private byte[] row(final int row, final int[] argb) {
+      final int width = img.getWidth();
+      final byte[] bytes = new byte[width * channels];
+      final int type = img.getType();
+      if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+        // Already packed the way getRGB returns them, so they are copied
+        // rather than converted a pixel at a time.
+        img.getRaster().getDataElements(0, row, width, 1, argb);
+      }
+      else {
+        img.getRGB(0, row, width, 1, argb, 0, width);
+      }
+      for (int x = 0, i = 0; x < width; x++) {
+        final int p = argb[x];
+        bytes[i++] = (byte)(p >>> 16);
+        bytes[i++] = (byte)(p >>> 8);
+        bytes[i++] = (byte)p;
+        if (channels == 4) {
+          bytes[i++] = (byte)(p >>> 24);
+        }
+      }
+      return bytes;
+    }
+
+    // Filters count rows from first, the first against prior, choosing for each
+    // row whichever of Sub and Paeth gives the smallest sum of absolute values,
+    // as the PNG specification suggests. Those two are what maps, drawn or
+    // painted, almost always end up with, so trying the other three as well
+    // costs more than it saves.
+    private byte[] filter(final int first, final int count, byte[] prior, final int[] argb) {
+      final int stride = img.getWidth() * channels;
+      final byte[] filtered = new byte[count * (stride + 1)];
+      final byte[] sub = new byte[stride];
+      final byte[] paeth = new byte[stride];
+      for (int r = 0; r < count; r++) {
+        final byte[] current = row(first + r, argb);
+        final boolean useSub = filterRow(current, prior, sub, paeth);
+        final int at = r * (stride + 1);
+        filtered[at] = (byte)(useSub ? SUB : PAETH);
+        System.arraycopy(useSub ? sub : paeth, 0, filtered, at + 1, stride);
+        prior = current;
+      }
+      return filtered;
+    }
+
+    // Applies Sub and Paeth to row, with prior the row above. Returns whether
+    // Sub's output has the smaller sum of absolute values, its bytes read as
+    // signed.
+    private boolean filterRow(final byte[] row, final byte[] prior, final byte[] sub,
+                              final byte[] paeth) {
+      long subSum = 0, paethSum = 0;
+      // The first pixel has nothing to its left, so both filters treat that as
+      // zero. Splitting it off keeps the loop over the rest free of branches.
+      for (int i = 0; i < Math.min(channels, row.length); i++) {
+        sub[i] = row[i];
+        paeth[i] = (byte)(row[i] - prior[i]);
+        subSum += Math.abs(sub[i]);
+        paethSum += Math.abs(paeth[i]);
+      }
+      for (int i = channels; i < row.length; i++) {
+        final int x = row[i] & 0xff;
+        final int a = row[i - channels] & 0xff;
+        final int b = prior[i] & 0xff;
+        final int c = prior[i - channels] & 0xff;
+        sub[i] = (byte)(x - a);
+        paeth[i] = (byte)(x - paeth(a, b, c));
+        subSum += Math.abs(sub[i]);
+        paethSum += Math.abs(paeth[i]);
+      }
+      return subSum <= paethSum;
+    }
+
+    // The predictor closest to a + b - c. Written out from the distances to
+    // each, rather than from the prediction itself, as it is most of what
+    // encoding costs.
+    private static int paeth(final int a, final int b, final int c) {
+      final int da = b - c;
+      final int db = a - c;
+      final int pa = Math.abs(da);
+      final int pb = Math.abs(db);
+      final int pc = Math.abs(da + db);
+      if (pa <= pb && pa <= pc) {
+        return a;
+      }
+      return (pb <= pc ? b : c);
+    }
+  }
+}
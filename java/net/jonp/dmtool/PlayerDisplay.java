@@ -0,0 +1,132 @@
+package net.jonp.dmtool;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GridLayout;
+import java.awt.RenderingHints;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.WindowConstants;
+
+/**
+ * Another window showing the player view, for a second screen such as a TV or
+ * a table-top monitor. It does not compose anything itself: it is sent each
+ * frame the Player View window draws, and scales it to fit, so another display
+ * costs a copy and a scaled blit rather than another render.
+ */
+public class PlayerDisplay
+  extends JFrame
+  implements FrameSink {
+  private static final long serialVersionUID = 1L;
+
+  private final DMTool dmtool;
+  private final View view = new View();
+
+  // Three buffers, so the render thread never waits for a paint, nor copies
+  // into the buffer being painted. front is the newest frame, painting the one
+  // the view is drawing, if any (which may also be front), and spare one free
+  // to copy into. All are guarded by this.
+  private BufferedImage front;
+  private BufferedImage painting;
+  private BufferedImage spare;
+  // The buffer the next frame is copied into. Only touched by the render
+  // thread, in offer.
+  private BufferedImage back;
+
+  private class View
+    extends JComponent {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void paintComponent(final Graphics og) {
+      final Graphics2D g = (Graphics2D)og;
+      g.setColor(Color.black);
+      g.fillRect(0, 0, getWidth(), getHeight());
+      final BufferedImage frame;
+      synchronized (PlayerDisplay.this) {
+        if (front == null) {
+          return;
+        }
+        frame = front;
+        painting = frame;
+      }
+      try {
+        // Fit the whole frame, centered, keeping its shape.
+        final double scale = Math.min((double)getWidth() / frame.getWidth(),
+                                      (double)getHeight() / frame.getHeight());
+        final int w = (int)Math.round(frame.getWidth() * scale);
+        final int h = (int)Math.round(frame.getHeight() * scale);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(frame, (getWidth() - w) / 2, (getHeight() - h) / 2, w, h, null);
+      }
+      finally {
+        synchronized (PlayerDisplay.this) {
+          painting = null;
+          // A newer frame came while this one was painted, so it is free.
+          if (frame != front) {
+            spare = frame;
+          }
+        }
+      }
+    }
+  }
+
+  public PlayerDisplay(final DMTool dmtool, final int number) {
+    super("Player View " + number);
+    this.dmtool = dmtool;
+
+    setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+    setPreferredSize(new Dimension(1024, 768));
+    setLayout(new GridLayout(1, 1));
+    add(view);
+    pack();
+
+    addWindowListener(new WindowAdapter() {
+      @Override
+      public void windowClosed(final WindowEvent e) {
+        dmtool.removePlayerSink(PlayerDisplay.this);
+      }
+    });
+  }
+
+  @Override
+  public void offer(final BufferedImage frame) {
+    if (back == null || back.getWidth() != frame.getWidth() ||
+        back.getHeight() != frame.getHeight()) {
+      back = new BufferedImage(frame.getWidth(), frame.getHeight(), BufferedImage.TYPE_INT_RGB);
+    }
+    final Graphics2D g = back.createGraphics();
+    g.setComposite(AlphaComposite.Src);
+    g.drawImage(frame, 0, 0, null);
+    g.dispose();
+
+    synchronized (this) {
+      final BufferedImage old = front;
+      front = back;
+      if (old != null && old != painting) {
+        back = old;
+      }
+      else {
+        // The old frame is still being painted, so the next one goes into the
+        // spare, or into a new buffer if there is none yet.
+        back = spare;
+        spare = null;
+      }
+    }
+    view.repaint();
+  }
+
+  /** Opens the window and starts showing the player view in it. */
+  public void open() {
+    setVisible(true);
+    dmtool.addPlayerSink(this);
+  }
+}
@@ -0,0 +1,69 @@
+package net.jonp.dmtool;
+
+import java.awt.Component;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+
+/**
+ * Shows how a save or open in the background is going, with a button to cancel
+ * it, and reports how it ended. The dialog only appears if the work takes a
+ * while.
+ */
+public class ProgressDialog
+  implements DMTool.ProgressListener {
+  private final Component parent;
+  private final File file;
+  private final String failure;
+  private final String errorTitle;
+  private final ProgressMonitor monitor;
+  private int percent = 0;
+
+  /**
+   * action describes the work, as in "Saving", and failure what went wrong if
+   * it fails, as in "Failed to save file".
+   */
+  public ProgressDialog(final Component parent, final String action, final File file,
+                        final String failure, final String errorTitle) {
+    this.parent = parent;
+    this.file = file;
+    this.failure = failure;
+    this.errorTitle = errorTitle;
+    monitor = new ProgressMonitor(parent, action + " \"" + file.getName() + "\"", null, 0, 100);
+  }
+
+  @Override
+  public boolean onProgress(final int percent) {
+    this.percent = percent;
+    monitor.setProgress(percent);
+    return !monitor.isCanceled();
+  }
+
+  @Override
+  public void onQuitPending() {
+    monitor.setMillisToDecideToPopup(0);
+    monitor.setMillisToPopup(0);
+    // Pops it up now, rather than at the next change.
+    monitor.setProgress(percent);
+  }
+
+  @Override
+  public void onDone(final IOException error) {
+    monitor.close();
+    if (error == null) {
+      System.err.println("Done with \"" + file + "\"");
+      return;
+    }
+    if (error instanceof InterruptedIOException) {
+      System.err.println("Cancelled work on \"" + file + "\"");
+      return;
+    }
+    JOptionPane.showMessageDialog(parent, failure + ": " + error.getMessage(), errorTitle,
+                                  JOptionPane.ERROR_MESSAGE);
+    System.err.println(failure + " \"" + file + "\"");
+    error.printStackTrace();
+  }
+}
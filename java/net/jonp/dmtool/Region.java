@@ -2,6 +2,9 @@
 package net.jonp.dmtool;
 
 import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Rectangle2D;
 
 import net.jonp.dmtool.dmproto.DMProto;
 
@@ -42,8 +45,6 @@ public class Region {
   public char symbol;
   public int index; // To tell apart avatars with the same symbol.
   public Color color;
-  public Integer fontSize; // Needs to be recalculated on resize.
-  public double lastZoomLevel = 1.0; // Recalculate font on zoom change.
 
   @Override
   public Region clone() {
@@ -55,16 +56,42 @@ public class Region {
     copy.symbol = symbol;
     copy.index = index;
     copy.color = color;
-    copy.fontSize = fontSize;
     parent.addChild(copy);
     return copy;
   }
 
+  /**
+   * Returns a copy of this with the same ID, belonging to the given group, for
+   * a snapshot of the regions that will not see later changes.
+   */
+  public Region snapshot(final RegionGroup snapshotParent) {
+    final Region copy = new Region(id);
+    copy.parent = snapshotParent;
+    copy.x = x;
+    copy.y = y;
+    copy.w = w;
+    copy.h = h;
+    copy.type = type;
+    copy.shape = shape;
+    copy.rotation = rotation;
+    copy.internalAngle = internalAngle;
+    copy.isInvisible = isInvisible;
+    copy.isDead = isDead;
+    copy.symbol = symbol;
+    copy.index = index;
+    copy.color = color;
+    return copy;
+  }
+
   public Region() {
     id = nextID;
     nextID++;
   }
 
+  private Region(final int id) {
+    this.id = id;
+  }
+
   public Region(final RegionGroup parent, final int x, final int y, final int w, final int h) {
     id = nextID;
     nextID++;
@@ -294,6 +321,56 @@ public class Region {
            y <= scale * (getY() + h);
   }
 
+  // The area this covers in image coordinates, including the corners of a
+  // rotated rectangular area and the full sweep of an arc.
+  Rectangle getBounds() {
+    final int x = getX();
+    final int y = getY();
+    final int w = getW();
+    final int h = getH();
+    if (isArea() && shape == Shape.RECTANGLE && rotation % 180 != 0) {
+      // Rotated around the center.
+      final double angle = Math.toRadians(rotation);
+      final double sin = Math.abs(Math.sin(angle));
+      final double cos = Math.abs(Math.cos(angle));
+      final double rw = w * cos + h * sin;
+      final double rh = w * sin + h * cos;
+      final double cx = x + w / 2.0;
+      final double cy = y + h / 2.0;
+      return new Rectangle((int)Math.floor(cx - rw / 2), (int)Math.floor(cy - rh / 2),
+                           (int)Math.ceil(rw) + 1, (int)Math.ceil(rh) + 1);
+    }
+    if (isArea() && shape == Shape.ARC) {
+      final Rectangle bounds = arc(x, y, w, h).getBounds();
+      bounds.grow(1, 1);
+      return bounds;
+    }
+    return new Rectangle(x, y, w, h);
+  }
+
+  // The pie slice for an arc-shaped area, sized so the arc itself (rather than
+  // the full circle) takes up roughly the given frame.
+  Arc2D.Double arc(final double left, final double top, final double width,
+                   final double height) {
+    final Arc2D.Double s =
+      new Arc2D.Double(left, top, width, height, rotation, internalAngle, Arc2D.PIE);
+
+    // We want the arc to take up the entire frame, but due to the internal
+    // angle, it may not. Adjust the frame by the magnitude of the
+    // difference so the arc takes up the whole thing.
+    // TODO: Corners reach a little out of the frame, keep them fully
+    // inside.
+    final Rectangle2D b = s.getBounds2D();
+    final double right = left + width;
+    final double bottom = top + height;
+    final double nx1 = left + 2 * (left - b.getX());
+    final double ny1 = top + 2 * (top - b.getY());
+    final double nx2 = right + 2 * (right - (b.getX() + b.getWidth()));
+    final double ny2 = bottom + 2 * (bottom - (b.getY() + b.getHeight()));
+    s.setFrame(nx1, ny1, nx2 - nx1, ny2 - ny1);
+    return s;
+  }
+
   public boolean intersects(final Region r) {
     if (r.x + r.w < x) {
       return false; // Too far to the left.
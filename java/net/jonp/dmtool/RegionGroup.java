@@ -32,11 +32,25 @@ public class RegionGroup {
     return copy;
   }
 
+  /** Returns a copy of this and its children, keeping all of their IDs. */
+  public RegionGroup snapshot() {
+    final RegionGroup copy = new RegionGroup(id);
+    copy.state = state;
+    for (final Region child : children.values()) {
+      copy.children.put(child.id, child.snapshot(copy));
+    }
+    return copy;
+  }
+
   public RegionGroup() {
     id = nextID;
     nextID++;
   }
 
+  private RegionGroup(final int id) {
+    this.id = id;
+  }
+
   public void serializeInto(final DMProto.Map.Builder map) {
     final DMProto.Group.Builder group = DMProto.Group.newBuilder();
     switch (state) {
@@ -0,0 +1,155 @@
+package net.jonp.dmtool;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid over image coordinates, so that finding the regions, avatars,
+ * and areas at a point or in a rectangle does not need to look at every one of
+ * them.
+ *
+ * Each entry is filed under every cell its bounds touch. The index has to be
+ * told about every add, move, resize, and delete; Regions takes care of that.
+ */
+public class RegionIndex {
+  private static final int CELL_SIZE = 256;
+
+  private final Map<Long, Map<Integer, Region>> cells = new HashMap<>();
+  private final Map<Integer, Region> members = new HashMap<>();
+  // The bounds each region was filed with. Padded by a pixel so that empty and
+  // rounded-off regions are still found.
+  private final Map<Integer, Rectangle> filed = new HashMap<>();
+
+  private static long key(final int column, final int row) {
+    return ((long)column << 32) | (row & 0xFFFFFFFFL);
+  }
+
+  private static Rectangle cellsCovering(final Rectangle area) {
+    final int left = Math.floorDiv(area.x, CELL_SIZE);
+    final int top = Math.floorDiv(area.y, CELL_SIZE);
+    final int right = Math.floorDiv(area.x + Math.max(area.width, 0), CELL_SIZE);
+    final int bottom = Math.floorDiv(area.y + Math.max(area.height, 0), CELL_SIZE);
+    return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+  }
+
+  private static Rectangle paddedBounds(final Region r) {
+    final Rectangle bounds = r.getBounds();
+    bounds.grow(1, 1);
+    return bounds;
+  }
+
+  public void add(final Region r) {
+    final Rectangle bounds = paddedBounds(r);
+    filed.put(r.id, bounds);
+    members.put(r.id, r);
+    final Rectangle range = cellsCovering(bounds);
+    for (int row = range.y; row < range.y + range.height; row++) {
+      for (int column = range.x; column < range.x + range.width; column++) {
+        cells.computeIfAbsent(key(column, row), (k) -> new LinkedHashMap<>()).put(r.id, r);
+      }
+    }
+  }
+
+  public void remove(final Region r) {
+    final Rectangle bounds = filed.remove(r.id);
+    if (bounds == null) {
+      return;
+    }
+    members.remove(r.id);
+    final Rectangle range = cellsCovering(bounds);
+    for (int row = range.y; row < range.y + range.height; row++) {
+      for (int column = range.x; column < range.x + range.width; column++) {
+        final long key = key(column, row);
+        final Map<Integer, Region> cell = cells.get(key);
+        if (cell == null) {
+          continue;
+        }
+        cell.remove(r.id);
+        if (cell.isEmpty()) {
+          cells.remove(key);
+        }
+      }
+    }
+  }
+
+  /** Re-files a region after it moved or changed size. */
+  public void update(final Region r) {
+    if (paddedBounds(r).equals(filed.get(r.id))) {
+      return;
+    }
+    remove(r);
+    add(r);
+  }
+
+  public void clear() {
+    cells.clear();
+    filed.clear();
+    members.clear();
+  }
+
+  /** Returns the region, avatar, or area with the given ID, or null. */
+  public Region get(final int id) {
+    return members.get(id);
+  }
+
+  /** The number of regions, avatars, and areas in the index. */
+  public int size() {
+    return filed.size();
+  }
+
+  /**
+   * Returns everything whose bounds may intersect the given area. Callers still
+   * need to do their own exact test.
+   */
+  public Collection<Region> intersecting(final Rectangle area) {
+    final Rectangle range = cellsCovering(area);
+    final Map<Integer, Region> found = new LinkedHashMap<>();
+    for (int row = range.y; row < range.y + range.height; row++) {
+      for (int column = range.x; column < range.x + range.width; column++) {
+        final Map<Integer, Region> cell = cells.get(key(column, row));
+        if (cell == null) {
+          continue;
+        }
+        for (final Region r : cell.values()) {
+          if (filed.get(r.id).intersects(area)) {
+            found.put(r.id, r);
+          }
+        }
+      }
+    }
+    return found.values();
+  }
+
+  /**
+   * Returns everything whose bounds may intersect the given area, in the order
+   * the mouse should pick them: live avatars, then dead avatars, then areas,
+   * then regions, with the most recently created first within each.
+   */
+  public List<Region> candidatesAt(final Rectangle area) {
+    final List<Region> candidates = new ArrayList<>(intersecting(area));
+    candidates.sort((final Region a, final Region b) -> {
+      final int byType = pickPriority(a) - pickPriority(b);
+      if (byType != 0) {
+        return byType;
+      }
+      return Integer.compare(b.id, a.id);
+    });
+    return candidates;
+  }
+
+  private static int pickPriority(final Region r) {
+    switch (r.type) {
+      case AVATAR:
+        return r.isDead ? 1 : 0;
+      case AREA:
+        return 2;
+      default:
+        return 3;
+    }
+  }
+}
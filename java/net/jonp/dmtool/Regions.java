@@ -1,21 +1,30 @@
 
 package net.jonp.dmtool;
 
+import java.awt.Rectangle;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.jonp.dmtool.dmproto.DMProto;
 
 /**
- * A collection of regions and region groups that supports the clone operation,
- * to take a snapshot.
+ * A collection of regions and region groups that supports the clone and
+ * snapshot operations, to take a copy.
  */
 public class Regions {
   private final Map<Integer, RegionGroup> groups = new HashMap<>();
   private final Map<Character, Integer> symbolCounter = new HashMap<>();
 
+  // Incremented whenever regions are added, removed, moved, resized, or change
+  // visibility, so cached layers built from them know to rebuild.
+  private int revision = 0;
+
+  // Built on the first lookup, then kept up to date as regions change.
+  private RegionIndex index;
+
   @Override
   public Regions clone() {
     final Regions n = new Regions();
@@ -29,6 +38,20 @@ public class Regions {
     return n;
   }
 
+  /**
+   * Returns a copy that will not see later changes to this one. Unlike clone,
+   * every group and region keeps its ID, so the copy can stand in for this one
+   * anywhere IDs are remembered.
+   */
+  public Regions snapshot() {
+    final Regions n = new Regions();
+    n.symbolCounter.putAll(symbolCounter);
+    for (final RegionGroup group : groups.values()) {
+      n.groups.put(group.id, group.snapshot());
+    }
+    return n;
+  }
+
   public DMProto.Map serialize() {
     final DMProto.Map.Builder map = DMProto.Map.newBuilder();
     for (final RegionGroup group : groups.values()) {
@@ -74,6 +97,77 @@ public class Regions {
   public void clear() {
     groups.clear();
     symbolCounter.clear();
+    index = null;
+    markChanged();
+  }
+
+  public int getRevision() {
+    return revision;
+  }
+
+  /**
+   * Must be called after changing the visibility of a region group directly,
+   * rather than through this class.
+   */
+  public void markChanged() {
+    revision++;
+  }
+
+  /**
+   * Must be called after moving, resizing, or rotating a region, avatar, or area
+   * directly, rather than through this class.
+   */
+  public void update(final Region r) {
+    if (index != null) {
+      index.update(r);
+    }
+    if (r.isRegion()) {
+      markChanged();
+    }
+  }
+
+  private RegionIndex getIndex() {
+    if (index == null) {
+      index = new RegionIndex();
+      for (final RegionGroup group : groups.values()) {
+        for (final Region r : group.getChildren()) {
+          index.add(r);
+        }
+      }
+    }
+    return index;
+  }
+
+  private void indexAdd(final Region r) {
+    if (index != null) {
+      index.add(r);
+    }
+  }
+
+  /**
+   * Returns everything whose bounds, in image coordinates, may intersect the
+   * given area. Callers still need to do their own exact test.
+   */
+  public Collection<Region> intersecting(final Rectangle area) {
+    return getIndex().intersecting(area);
+  }
+
+  /** Returns the region, avatar, or area with the given ID, or null. */
+  public Region get(final int id) {
+    return getIndex().get(id);
+  }
+
+  /** The number of regions, avatars, and areas in all groups. */
+  public int size() {
+    return getIndex().size();
+  }
+
+  /**
+   * Like intersecting, but ordered by which should be picked first under the
+   * mouse: live avatars, dead avatars, areas, then regions.
+   */
+  public List<Region> candidatesAt(final Rectangle area) {
+    return getIndex().candidatesAt(area);
   }
 
   // Pass 0 to create a new region group.
@@ -89,7 +183,29 @@ public class Regions {
         throw new IllegalArgumentException("no such region group: " + parentID);
       }
     }
-    return parent.addChild(x, y, w, h);
+    markChanged();
+    final Region r = parent.addChild(x, y, w, h);
+    indexAdd(r);
+    return r;
+  }
+
+  /** Creates an empty region group. */
+  public RegionGroup addGroup() {
+    final RegionGroup group = new RegionGroup();
+    groups.put(group.id, group);
+    markChanged();
+    return group;
+  }
+
+  /**
+   * Adds a region, avatar, or area that is not in any group to the given group.
+   * The group is added again if removing its last child took it out.
+   */
+  public void add(final RegionGroup group, final Region r) {
+    groups.put(group.id, group);
+    group.addChild(r);
+    indexAdd(r);
+    markChanged();
   }
 
   public Region duplicate(final Region old) {
@@ -125,6 +241,8 @@ public class Regions {
     }
     old.nextDupPosition++;
     old.nextDupPosition %= 8;
+    indexAdd(r);
+    markChanged();
     return r;
   }
 
@@ -133,6 +251,8 @@ public class Regions {
     final RegionGroup parent = new RegionGroup();
     groups.put(parent.id, parent);
     parent.addChild(r);
+    indexAdd(r);
+    markChanged();
   }
 
   public void removeRegion(final Region r) {
@@ -146,6 +266,10 @@ public class Regions {
     if (r.parent.children.isEmpty()) {
       groups.remove(r.parent.id);
     }
+    if (index != null) {
+      index.remove(r);
+    }
+    markChanged();
   }
 
   public Collection<RegionGroup> getGroups() {
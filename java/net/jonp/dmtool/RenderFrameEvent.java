@@ -0,0 +1,62 @@
+package net.jonp.dmtool;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event for every frame a view draws, with how long each stage
+ * took. Only recorded while a recording with this event enabled is running, for
+ * example after starting the tool with -XX:StartFlightRecording.
+ */
+@Name("net.jonp.dmtool.RenderFrame")
+@Label("Render Frame")
+@Category({"DMTool", "Rendering"})
+@Description("One frame drawn by a map view")
+public class RenderFrameEvent
+  extends Event {
+  @Label("View")
+  String view;
+
+  @Label("Scroll")
+  @Timespan(Timespan.NANOSECONDS)
+  long scroll;
+
+  @Label("Base Image")
+  @Timespan(Timespan.NANOSECONDS)
+  long baseImage;
+
+  @Label("Avatars and Areas")
+  @Timespan(Timespan.NANOSECONDS)
+  long avatars;
+
+  @Label("Visibility Mask")
+  @Timespan(Timespan.NANOSECONDS)
+  long mask;
+
+  @Label("Compose")
+  @Timespan(Timespan.NANOSECONDS)
+  long compose;
+
+  @Label("Controls")
+  @Timespan(Timespan.NANOSECONDS)
+  long controls;
+
+  @Label("Present")
+  @Timespan(Timespan.NANOSECONDS)
+  long present;
+
+  @Label("Allocated")
+  @DataAmount
+  long allocated;
+
+  @Label("Objects Drawn")
+  int drawn;
+
+  @Label("Objects Culled")
+  int culled;
+}
@@ -0,0 +1,213 @@
+package net.jonp.dmtool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Measures the frames of a MapPanel: how many objects each frame drew and how
+ * many it culled, how long each stage of drawing took, and how much the render
+ * thread allocated. Timings and allocation go into histograms, which are exposed
+ * over JMX once registered, and every frame is also recorded as a
+ * RenderFrameEvent for Flight Recorder.
+ *
+ * An object is counted as drawn if any pass drew any part of it during the
+ * frame, and as culled otherwise. A stage that runs more than once in a frame,
+ * once per damaged area, is counted as the sum of its runs.
+ */
+public class RenderStats
+  implements RenderStatsMXBean {
+  public static enum Stage {
+    SCROLL, // Shifting the last frame's layers to follow a scroll.
+    BASE_IMAGE, // Drawing the map image into the pre-avatar buffer.
+    AVATARS, // drawBaseImage: areas and avatars over the map.
+    MASK, // drawVisibilityMask.
+    COMPOSE, // Putting the mask over the avatars.
+    CONTROLS, // The DM's handles, highlights, and PAUSED banner.
+    PRESENT, // Copying the frame to the screen.
+    FRAME, // All of the above, and everything in between.
+  }
+
+  private final String name;
+  private final Set<Integer> drawnThisFrame = new HashSet<>();
+
+  // Only com.sun.management's version can report allocation.
+  private final com.sun.management.ThreadMXBean threadBean;
+
+  private final Map<Stage, Histogram> stageTimes = new EnumMap<>(Stage.class);
+  private final Histogram allocatedBytes = new Histogram();
+  private final long[] frameTimes = new long[Stage.values().length];
+  private final boolean[] ranThisFrame = new boolean[Stage.values().length];
+  private long frameStart;
+  private long frameAllocationStart;
+  private RenderFrameEvent event;
+
+  private volatile int lastDrawn = 0;
+  private volatile int lastCulled = 0;
+  private volatile long frames = 0;
+  private long totalDrawn = 0;
+  private long totalCulled = 0;
+
+  public RenderStats(final String name) {
+    this.name = name;
+    for (final Stage stage : Stage.values()) {
+      stageTimes.put(stage, new Histogram());
+    }
+
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean &&
+        ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+      threadBean = (com.sun.management.ThreadMXBean)bean;
+      threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+    else {
+      threadBean = null;
+    }
+  }
+
+  /** Makes these statistics readable over JMX. */
+  public void register() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(this, new ObjectName("net.jonp.dmtool:type=RenderStats,view=" +
+                                                ObjectName.quote(name)));
+    }
+    catch (final JMException e) {
+      System.err.println("Failed to register render statistics for " + name + ": " + e);
+    }
+  }
+
+  private long allocatedByThisThread() {
+    if (threadBean == null) {
+      return 0;
+    }
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /** Marks the start of a frame. Must be called on the thread drawing it. */
+  public void beginFrame() {
+    event = new RenderFrameEvent();
+    event.begin();
+    for (int i = 0; i < frameTimes.length; i++) {
+      frameTimes[i] = 0;
+      ranThisFrame[i] = false;
+    }
+    frameAllocationStart = allocatedByThisThread();
+    frameStart = System.nanoTime();
+  }
+
+  /** Adds time spent in a stage during this frame, from System.nanoTime(). */
+  public void addTime(final Stage stage, final long nanos) {
+    frameTimes[stage.ordinal()] += nanos;
+    ranThisFrame[stage.ordinal()] = true;
+  }
+
+  /** Records that some part of r was drawn this frame. */
+  public void drew(final Region r) {
+    drawnThisFrame.add(r.id);
+  }
+
+  /**
+   * Marks the end of a frame. total is the number of objects in the model, all
+   * of which were candidates for drawing.
+   */
+  public void endFrame(final int total) {
+    addTime(Stage.FRAME, System.nanoTime() - frameStart);
+    final long allocated = Math.max(0, allocatedByThisThread() - frameAllocationStart);
+    for (final Stage stage : Stage.values()) {
+      if (ranThisFrame[stage.ordinal()]) {
+        stageTimes.get(stage).record(frameTimes[stage.ordinal()]);
+      }
+    }
+    if (threadBean != null) {
+      allocatedBytes.record(allocated);
+    }
+
+    final int drawn = drawnThisFrame.size();
+    final int culled = Math.max(0, total - drawn);
+    drawnThisFrame.clear();
+    lastDrawn = drawn;
+    lastCulled = culled;
+    frames++;
+    totalDrawn += drawn;
+    totalCulled += culled;
+
+    event.end();
+    if (event.shouldCommit()) {
+      event.view = name;
+      event.scroll = frameTimes[Stage.SCROLL.ordinal()];
+      event.baseImage = frameTimes[Stage.BASE_IMAGE.ordinal()];
+      event.avatars = frameTimes[Stage.AVATARS.ordinal()];
+      event.mask = frameTimes[Stage.MASK.ordinal()];
+      event.compose = frameTimes[Stage.COMPOSE.ordinal()];
+      event.controls = frameTimes[Stage.CONTROLS.ordinal()];
+      event.present = frameTimes[Stage.PRESENT.ordinal()];
+      event.allocated = allocated;
+      event.drawn = drawn;
+      event.culled = culled;
+      event.commit();
+    }
+    event = null;
+  }
+
+  private static Summary summarize(final Histogram h) {
+    return new Summary(h.getCount(), h.getPercentile(0.5), h.getPercentile(0.99), h.getMax());
+  }
+
+  @Override
+  public int getLastDrawn() {
+    return lastDrawn;
+  }
+
+  @Override
+  public int getLastCulled() {
+    return lastCulled;
+  }
+
+  @Override
+  public long getFrames() {
+    return frames;
+  }
+
+  public long getTotalDrawn() {
+    return totalDrawn;
+  }
+
+  public long getTotalCulled() {
+    return totalCulled;
+  }
+
+  public Histogram getStageTime(final Stage stage) {
+    return stageTimes.get(stage);
+  }
+
+  @Override
+  public Map<String, Summary> getStageTimes() {
+    final Map<String, Summary> summaries = new LinkedHashMap<>();
+    for (final Stage stage : Stage.values()) {
+      summaries.put(stage.name(), summarize(stageTimes.get(stage)));
+    }
+    return summaries;
+  }
+
+  @Override
+  public Summary getAllocatedBytes() {
+    return summarize(allocatedBytes);
+  }
+
+  @Override
+  public void reset() {
+    for (final Histogram h : stageTimes.values()) {
+      h.reset();
+    }
+    allocatedBytes.reset();
+  }
+}
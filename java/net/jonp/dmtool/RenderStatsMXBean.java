@@ -0,0 +1,57 @@
+package net.jonp.dmtool;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ * The rendering statistics of one view, for reading over JMX (for example with
+ * JConsole or VisualVM) during a live session.
+ */
+public interface RenderStatsMXBean {
+  /** Percentiles of one histogram. */
+  public static class Summary {
+    private final long count;
+    private final long p50;
+    private final long p99;
+    private final long max;
+
+    @ConstructorProperties({"count", "p50", "p99", "max"})
+    public Summary(final long count, final long p50, final long p99, final long max) {
+      this.count = count;
+      this.p50 = p50;
+      this.p99 = p99;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getP50() {
+      return p50;
+    }
+
+    public long getP99() {
+      return p99;
+    }
+
+    public long getMax() {
+      return max;
+    }
+  }
+
+  long getFrames();
+
+  int getLastDrawn();
+
+  int getLastCulled();
+
+  /** Time spent in each stage of a frame, in nanoseconds, keyed by stage name. */
+  Map<String, Summary> getStageTimes();
+
+  /** Bytes allocated by the render thread per frame. */
+  Summary getAllocatedBytes();
+
+  /** Clears the histograms, to measure from now on. */
+  void reset();
+}
@@ -0,0 +1,94 @@
+package net.jonp.dmtool;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsConfiguration;
+import java.lang.reflect.InvocationTargetException;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Draws the frames of one MapPanel off the event dispatch thread.
+ *
+ * Asking for a frame only sets a flag, so input handling never waits on
+ * drawing. However many requests come in, at most one frame is drawn per display
+ * refresh: after each frame the thread sleeps out the rest of the refresh
+ * interval, then captures the panel's latest state and draws that.
+ */
+public class RenderThread
+  extends Thread {
+  private static final int DEFAULT_REFRESH_RATE = 60;
+
+  private final MapPanel panel;
+  private final long frameInterval; // Nanoseconds.
+
+  private boolean requested = false;
+  private long lastFrame = 0;
+
+  public RenderThread(final MapPanel panel, final String name, final GraphicsConfiguration gc) {
+    super(name);
+    setDaemon(true);
+    this.panel = panel;
+
+    int rate = DEFAULT_REFRESH_RATE;
+    if (gc != null) {
+      final DisplayMode mode = gc.getDevice().getDisplayMode();
+      if (mode != null && mode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN) {
+        rate = mode.getRefreshRate();
+      }
+    }
+    frameInterval = 1000000000L / rate;
+    System.err.println(name + " drawing at up to " + rate + " frames per second");
+  }
+
+  /** Asks for a frame to be drawn soon. Safe to call from any thread. */
+  public synchronized void requestFrame() {
+    requested = true;
+    notifyAll();
+  }
+
+  private synchronized void awaitRequest()
+    throws InterruptedException {
+    while (!requested) {
+      wait();
+    }
+  }
+
+  private synchronized void clearRequest() {
+    requested = false;
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        awaitRequest();
+        // Let requests pile up until the display is ready for another frame.
+        final long wait = lastFrame + frameInterval - System.nanoTime();
+        if (wait > 0) {
+          Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+        }
+        clearRequest();
+        lastFrame = System.nanoTime();
+
+        final Scene[] scene = new Scene[1];
+        SwingUtilities.invokeAndWait(() -> {
+          scene[0] = panel.captureScene();
+        });
+        if (scene[0] != null) {
+          panel.render(scene[0]);
+        }
+      }
+      catch (final InterruptedException e) {
+        return;
+      }
+      catch (final InvocationTargetException e) {
+        System.err.println(getName() + " failed to capture a frame");
+        e.getCause().printStackTrace();
+      }
+      catch (final RuntimeException e) {
+        System.err.println(getName() + " failed to draw a frame");
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package net.jonp.dmtool;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything needed to draw one frame of a MapPanel, captured on the event
+ * dispatch thread so that the frame can be drawn on a render thread while input
+ * keeps being handled against the live model.
+ *
+ * A Scene is put together with a Builder, and nothing in it can be changed once
+ * it is built. Its regions are a snapshot, with the same IDs as the live ones,
+ * and are only retaken after the DM edits something.
+ */
+public class Scene {
+  /** How the regions being dragged are displaced from where they really are. */
+  public static class Drag {
+    final Set<Integer> ids;
+    final int dx, dy; // Mouse movement since the drag started, in window pixels.
+    final int xm, ym, wm, hm; // Multipliers, as in MapPanel.
+    final boolean square;
+
+    public Drag(final Set<Integer> ids, final int dx, final int dy, final int xm, final int ym,
+                final int wm, final int hm, final boolean square) {
+      this.ids = ids;
+      this.dx = dx;
+      this.dy = dy;
+      this.xm = xm;
+      this.ym = ym;
+      this.wm = wm;
+      this.hm = hm;
+      this.square = square;
+    }
+
+    public boolean applies(final Region r) {
+      return ids.contains(r.id);
+    }
+  }
+
+  final boolean isPlayer;
+  final Dimension size; // Of the window. Headless callers size their own frame.
+  final ImagePyramid pyramid;
+  final Point offset;
+  final double scale;
+  final ImagePyramid.Quality quality;
+  final boolean paused;
+  final Regions regions;
+  final Drag drag; // Null unless dragging.
+
+  // The DM's controls. Left empty for the player.
+  final Region active; // Not in regions if it is still being drawn.
+  final boolean activeSelected; // The active region is part of the selection.
+  final boolean selectionBox;
+  final Collection<Region> selection;
+  final Collection<Region> siblings; // Rest of the active group.
+
+  // What needs to be recomposed.
+  final boolean fullRepaint;
+  final Map<Integer, Boolean> damage; // ID -> whether it is a region.
+  final boolean thaw; // Drop any frozen frame.
+
+  private Scene(final Builder b) {
+    isPlayer = b.isPlayer;
+    size = (b.size == null ? null : new Dimension(b.size));
+    pyramid = b.pyramid;
+    offset = (b.offset == null ? null : new Point(b.offset));
+    scale = b.scale;
+    quality = b.quality;
+    paused = b.paused;
+    regions = b.regions;
+    drag = b.drag;
+    active = b.active;
+    activeSelected = b.activeSelected;
+    selectionBox = b.selectionBox;
+    selection = Collections.unmodifiableList(new ArrayList<>(b.selection));
+    siblings = Collections.unmodifiableList(new ArrayList<>(b.siblings));
+    fullRepaint = b.fullRepaint;
+    damage = Collections.unmodifiableMap(new HashMap<>(b.damage));
+    thaw = b.thaw;
+  }
+
+  /** Collects a Scene's contents while it is being captured. See Scene's fields. */
+  public static class Builder {
+    final boolean isPlayer;
+    Dimension size;
+    ImagePyramid pyramid;
+    Point offset;
+    double scale;
+    ImagePyramid.Quality quality = ImagePyramid.Quality.FINE;
+    boolean paused;
+    Regions regions;
+    Drag drag;
+    Region active;
+    boolean activeSelected;
+    boolean selectionBox;
+    final Collection<Region> selection = new ArrayList<>();
+    final Collection<Region> siblings = new ArrayList<>();
+    boolean fullRepaint;
+    final Map<Integer, Boolean> damage = new HashMap<>();
+    boolean thaw;
+
+    public Builder(final boolean isPlayer) {
+      this.isPlayer = isPlayer;
+    }
+
+    public Scene build() {
+      return new Scene(this);
+    }
+  }
+}
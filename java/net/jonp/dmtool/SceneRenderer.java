@@ -0,0 +1,833 @@
+package net.jonp.dmtool;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.Arc2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Composes the frames of the player or DM view from a Scene: the map image, the
+ * areas and avatars over it, and the visibility mask over those. Needs no
+ * window, so it also works with java.awt.headless=true, on any thread.
+ *
+ * Frames are drawn into a buffer supplied by the caller. The layers behind the
+ * frame are kept between calls, so if the same buffer is passed again only the
+ * scene's damage is recomposed; any other buffer is drawn from scratch. One
+ * renderer must only be used by one thread at a time.
+ */
+public class SceneRenderer {
+  private static final int MAX_DAMAGE_RECTS = 16;
+
+  private static final Color PLAYER_MASK_COLOR = new Color(0, 0, 0, 255);
+  private static final Color PLAYER_FOGGED_MASK_COLOR = new Color(0, 0, 0, 128);
+  private static final Color DM_EMPTY_MASK_COLOR = new Color(0, 0, 0, 128);
+  private static final Color DM_HIDDEN_MASK_COLOR = new Color(0, 0, 128, 128);
+  private static final Color DM_SELECTION_MASK_COLOR = new Color(0, 192, 0, 128);
+  private static final Color DM_ACTIVE_MASK_COLOR = new Color(255, 255, 0, 64);
+  private static final Color DM_FOGGED_MASK_COLOR = new Color(192, 0, 192, 128);
+  private static final Color CLEAR_MASK_COLOR = new Color(0, 0, 0, 0);
+
+  static final int HANDLE_SIZE = 6;
+  private static final Color HANDLE_COLOR = Color.red;
+  private static final Color LOCKED_HANDLE_COLOR = Color.blue;
+  private static final Color SELECTION_COLOR = Color.yellow;
+  private static final Color ACTIVE_SELECTION_COLOR = Color.cyan;
+
+  private static final Color DEAD_AVATAR_COLOR = new Color(92, 92, 92, 192);
+
+  // Avatar corners, for the small indicators drawn in them.
+  private static final int NE_CORNER = 1;
+  private static final int SE_CORNER = 2;
+  private static final int SW_CORNER = 3;
+
+  /** Where a region is drawn in the window, given a scale, offset, and drag. */
+  static class Corners {
+    final int left, right, top, bottom;
+    final int width, height;
+    final int midX, midY;
+
+    public Corners(final Region r, final double scale, final Point off, final Scene.Drag drag) {
+      final double invScale = 1.0 / scale;
+      final boolean dragged = drag != null && drag.applies(r);
+
+      // If dragging a box, set the b* vars that act as the active region's
+      // dimensions.
+      // The active region will have all 0s, so we can add the two together to
+      // get the actual region dimensions.
+      double bx = 0;
+      double by = 0;
+      double bw = 0;
+      double bh = 0;
+      if (dragged) {
+        // Mouse coordinates are in a scaled image, so reverse the scale first.
+        bx = invScale * drag.xm * drag.dx;
+        bw = invScale * drag.wm * drag.dx;
+        by = invScale * drag.ym * drag.dy;
+        bh = invScale * drag.hm * drag.dy;
+      }
+
+      // Square the region if dragging while holding the square modifier.
+      double rWidth = r.getW() + bw;
+      double rHeight = r.getH() + bh;
+      if (dragged && drag.square) {
+        if (rWidth > rHeight) {
+          rWidth = rHeight;
+        }
+        rHeight = rWidth;
+      }
+
+      // Determine the corner & middle-edge coordinates.
+      final double rLeft = Math.min(r.getX() + bx, r.getX() + bx + rWidth);
+      final double rRight = Math.max(r.getX() + bx, r.getX() + bx + rWidth);
+      final double rTop = Math.min(r.getY() + by, r.getY() + by + rHeight);
+      final double rBottom = Math.max(r.getY() + by, r.getY() + by + rHeight);
+
+      left = (int)(off.x + scale * rLeft);
+      right = (int)(off.x + scale * rRight);
+      top = (int)(off.y + scale * rTop);
+      bottom = (int)(off.y + scale * rBottom);
+      width = right - left;
+      height = bottom - top;
+      midX = (left + right) / 2;
+      midY = (top + bottom) / 2;
+    }
+
+    public boolean contains(final int x, final int y) {
+      return left <= x && x <= right && top <= y && y <= bottom;
+    }
+  }
+
+  // A part of the frame to recompose. The visibility mask is only redrawn if a
+  // region, rather than an avatar or area, changed there.
+  private static class Damage {
+    final Rectangle rect;
+    final boolean mask;
+
+    Damage(final Rectangle rect, final boolean mask) {
+      this.rect = rect;
+      this.mask = mask;
+    }
+  }
+
+  final boolean isPlayer;
+
+  final Color emptyMaskColor; // When there is no region.
+  final Color hiddenMaskColor; // When the region is hidden.
+  final Color selectionMaskColor; // When drawing a selection box.
+  final Color activeMaskColor; // When a region (but not a selection box) is
+                               // active.
+  final Color foggedMaskColor;
+
+  // The layers behind the frame, reused between frames so that only the
+  // damaged parts need to be recomposed.
+  final FrameBufferPool frameBuffers;
+  final RenderStats renderStats;
+
+  // The buffer the last frame was drawn into. Anything else needs a full
+  // repaint.
+  BufferedImage lastFrame;
+
+  // Where each avatar, area, and region was last drawn, so the area it moved
+  // away from can be recomposed.
+  final Map<Integer, Rectangle> drawnBounds = new HashMap<>();
+
+  // The view the last frame was drawn with. If only the offset has changed
+  // since, the layers are shifted to match and just the exposed edges drawn.
+  ImagePyramid lastPyramid;
+  int lastRevision;
+  double lastScale;
+  ImagePyramid.Quality lastQuality;
+  Point lastOffset;
+
+  // Set once the player's view has been drawn while paused. Nothing it shows
+  // can change until resume, so later frames are left as they are. Only
+  // cleared by a scene that thaws it, a new buffer, or a sharper level or
+  // refined tiles of the image becoming available.
+  boolean frozen = false;
+  int frozenRevision = 0;
+
+  // Region draw order for the visibility mask, rebuilt when the regions change.
+  VisibilityMask visibilityMask;
+
+  // Avatar symbols and labels, drawn once per size and color.
+  final GlyphAtlas glyphs = new GlyphAtlas();
+
+  /**
+   * Creates a renderer for the player's view, or the DM's. Its layers are kept
+   * in frameBuffers, and what it draws is counted in renderStats; framing each
+   * render call with beginFrame and endFrame is up to the caller.
+   */
+  public SceneRenderer(final boolean isPlayer, final FrameBufferPool frameBuffers,
+                       final RenderStats renderStats) {
+    this.isPlayer = isPlayer;
+    this.frameBuffers = frameBuffers;
+    this.renderStats = renderStats;
+
+    if (isPlayer) {
+      emptyMaskColor = PLAYER_MASK_COLOR;
+      hiddenMaskColor = PLAYER_MASK_COLOR;
+      selectionMaskColor = PLAYER_MASK_COLOR;
+      activeMaskColor = PLAYER_MASK_COLOR;
+      foggedMaskColor = PLAYER_FOGGED_MASK_COLOR;
+    }
+    else {
+      emptyMaskColor = DM_EMPTY_MASK_COLOR;
+      hiddenMaskColor = DM_HIDDEN_MASK_COLOR;
+      selectionMaskColor = DM_SELECTION_MASK_COLOR;
+      activeMaskColor = DM_ACTIVE_MASK_COLOR;
+      foggedMaskColor = DM_FOGGED_MASK_COLOR;
+    }
+  }
+
+  /**
+   * Draws the scene into frame, which must be TYPE_INT_ARGB. Only the scene's
+   * damage is recomposed if frame is the buffer the last scene was drawn into,
+   * and still holds that frame. If the view has only been scrolled since, the
+   * last frame is shifted and only the newly exposed edges are drawn. The DM's
+   * controls are not included; see drawControls. Returns whether any of frame
+   * was drawn.
+   */
+  public boolean render(final Scene scene, final BufferedImage frame) {
+    final Rectangle b = new Rectangle(frame.getWidth(), frame.getHeight());
+    boolean full = scene.fullRepaint;
+    if (scene.thaw) {
+      frozen = false;
+    }
+    if (frame != lastFrame) {
+      lastFrame = frame;
+      full = true;
+      frozen = false;
+    }
+    final int revision = (scene.pyramid == null) ? 0 : scene.pyramid.getRevision();
+    if (frozen) {
+      if (revision == frozenRevision) {
+        // The paused view cannot have changed, whatever was asked for.
+        return false;
+      }
+      full = true;
+    }
+    if (scene.pyramid != lastPyramid || revision != lastRevision || scene.scale != lastScale ||
+        scene.quality != lastQuality) {
+      full = true;
+    }
+    final int dx = full ? 0 : scene.offset.x - lastOffset.x;
+    final int dy = full ? 0 : scene.offset.y - lastOffset.y;
+    if (Math.abs(dx) >= b.width || Math.abs(dy) >= b.height) {
+      // Nothing left to reuse.
+      full = true;
+    }
+    lastPyramid = scene.pyramid;
+    lastRevision = revision;
+    lastScale = scene.scale;
+    lastQuality = scene.quality;
+    lastOffset = new Point(scene.offset);
+
+    final BufferedImage preAvatarImg = frameBuffers.get("preAvatar", b.width, b.height);
+    final BufferedImage postAvatarImg = frameBuffers.get("postAvatar", b.width, b.height);
+    final BufferedImage overlay = frameBuffers.get("overlay", b.width, b.height);
+
+    final Collection<Rectangle> exposed = new ArrayList<>();
+    if (full) {
+      exposed.add(b);
+    }
+    else if (dx != 0 || dy != 0) {
+      final long start = System.nanoTime();
+      for (final BufferedImage img : new BufferedImage[] {
+        preAvatarImg, postAvatarImg, overlay, frame
+      }) {
+        shift(img, dx, dy);
+      }
+      for (final Rectangle r : drawnBounds.values()) {
+        r.translate(dx, dy);
+      }
+      if (dx != 0) {
+        exposed.add(new Rectangle(dx > 0 ? 0 : b.width + dx, 0, Math.abs(dx), b.height));
+      }
+      if (dy != 0) {
+        exposed.add(new Rectangle(0, dy > 0 ? 0 : b.height + dy, b.width, Math.abs(dy)));
+      }
+      renderStats.addTime(RenderStats.Stage.SCROLL, System.nanoTime() - start);
+    }
+
+    final Collection<Damage> damage = collectDamage(scene, full, exposed, b);
+    if (!exposed.isEmpty()) {
+      // Capture the pre-avatar image, which will be used for filling in
+      // "fogged" regions. It only changes with the view, so only what has come
+      // into view needs drawing.
+      final long start = System.nanoTime();
+      final Graphics2D g = preAvatarImg.createGraphics();
+      g.setComposite(AlphaComposite.Src);
+      g.setColor(Color.black); // Black mat in case the image is small.
+      for (final Rectangle r : exposed) {
+        g.setClip(r);
+        g.fillRect(r.x, r.y, r.width, r.height);
+
+        // Only the tiles in view are drawn, from the closest pre-scaled level.
+        if (scene.pyramid != null) {
+          scene.pyramid.draw(g, scene.offset, scene.scale, r, scene.quality);
+        }
+      }
+      g.dispose();
+      renderStats.addTime(RenderStats.Stage.BASE_IMAGE, System.nanoTime() - start);
+    }
+    for (final Damage d : damage) {
+      composeFrame(scene, d.rect, d.mask, preAvatarImg, postAvatarImg, overlay, frame);
+    }
+    if (isPlayer && scene.paused) {
+      frozen = true;
+      frozenRevision = revision;
+    }
+    return !damage.isEmpty();
+  }
+
+  // Moves the contents of an INT_ARGB image by dx, dy, leaving the exposed
+  // edges as they were. Graphics.copyArea takes a slow generic path on
+  // software images; moving the rows directly is several times faster.
+  private static void shift(final BufferedImage img, final int dx, final int dy) {
+    final DataBufferInt buffer = (DataBufferInt)img.getRaster().getDataBuffer();
+    final int[] data = buffer.getData();
+    final int base = buffer.getOffset();
+    final int stride = ((SinglePixelPackedSampleModel)img.getSampleModel()).getScanlineStride();
+    final int length = img.getWidth() - Math.abs(dx);
+    final int fromX = Math.max(0, -dx);
+    final int toX = Math.max(0, dx);
+    final int height = img.getHeight();
+    // Copy in the direction that never overwrites rows still to be copied.
+    if (dy > 0) {
+      for (int y = height - 1; y >= dy; y--) {
+        System.arraycopy(data, base + (y - dy) * stride + fromX, data, base + y * stride + toX,
+                         length);
+      }
+    }
+    else {
+      for (int y = 0; y < height + dy; y++) {
+        System.arraycopy(data, base + (y - dy) * stride + fromX, data, base + y * stride + toX,
+                         length);
+      }
+    }
+  }
+
+  // Where r is drawn in the given scene.
+  static Corners corners(final Region r, final Scene scene) {
+    return new Corners(r, scene.scale, scene.offset, scene.drag);
+  }
+
+  static Polygon rotate(final Corners c, final float degrees) {
+    // Rotates around the center of the rectangle.
+    final int ox = c.left + c.width / 2;
+    final int oy = c.top + c.height / 2;
+
+    final int x1 = c.left - ox;
+    final int y1 = c.top - oy;
+    final int x2 = x1 + c.width;
+    final int y2 = y1 + c.height;
+
+    // Manually applying the rotation matrix. Note that the resulting rectangle
+    // cannot be represented simply as x,y width,height any more; we need four
+    // distinct corner coordinates.
+    // | cos θ, -sin θ |
+    // | sin θ, cos θ |
+    final double angle = Math.toRadians(degrees);
+    final double sin = Math.sin(angle);
+    final double cos = Math.cos(angle);
+    final Polygon p = new Polygon();
+    p.addPoint((int)(x1 * cos - y1 * sin), (int)(x1 * sin + y1 * cos));
+    p.addPoint((int)(x1 * cos - y2 * sin), (int)(x1 * sin + y2 * cos));
+    p.addPoint((int)(x2 * cos - y2 * sin), (int)(x2 * sin + y2 * cos));
+    p.addPoint((int)(x2 * cos - y1 * sin), (int)(x2 * sin + y1 * cos));
+    p.translate(ox, oy);
+    return p;
+  }
+
+  private void drawStringInAvatarCorner(final Graphics2D g, final Scene scene, final Region r,
+                                        final int fontSize, final Color color, final String s,
+                                        final int corner) {
+    // Add indicators in the corners, at 1/3 the font size.
+    // Space from the side by the width of a narrow character in the font.
+    if (fontSize / 3 <= 0) {
+      return;
+    }
+
+    final GlyphAtlas.Glyph glyph = glyphs.get(s, fontSize / 3, color);
+    final Corners c = corners(r, scene);
+    final double left = c.left + glyph.space;
+    final double right = c.right - glyph.width - glyph.space;
+    final double bottom = c.bottom - glyph.descent;
+    final double top = c.top + glyph.height;
+
+    double x, y;
+    switch (corner) {
+      case NE_CORNER:
+        x = right;
+        y = top;
+        break;
+      case SW_CORNER:
+        x = left;
+        y = bottom;
+        break;
+      case SE_CORNER:
+        x = right;
+        y = bottom;
+        break;
+      default:
+        throw new IllegalArgumentException("Not a corner: " + corner);
+    }
+    glyph.draw(g, (int)x, (int)y);
+  }
+
+  private void drawAvatar(final Graphics2D g, final Scene scene, final Region r) {
+    if (isPlayer && !r.isAvatarVisible()) {
+      return;
+    }
+
+    final Corners c = corners(r, scene);
+    final String symbol = Character.toString(r.symbol);
+    Color color = r.color;
+    if (r.isDead) {
+      color = DEAD_AVATAR_COLOR;
+    }
+
+    g.setColor(color);
+    if (r.isAvatarVisible()) {
+      g.drawRect(c.left, c.top, c.width - 1, c.height - 1);
+      g.drawRect(c.left + 1, c.top + 1, c.width - 3, c.height - 3);
+    }
+    else {
+      // Rounded rect to indicate invisible.
+      g.drawRoundRect(c.left, c.top, c.width - 1, c.height - 1, c.width / 2, c.height / 2);
+    }
+
+    // Almost center the symbol in the region, adjusting for descent. Push it a
+    // little up to better fit symbols at the bottom. The font size only depends
+    // on the size the avatar is drawn at, so resizing or zooming just picks
+    // another sprite.
+    final int fontSize = glyphs.fitFontSize(symbol, c.width, c.height);
+    final GlyphAtlas.Glyph glyph = glyphs.get(symbol, fontSize, color);
+    final double x = c.left + (c.width - glyph.width) / 2;
+    final double y = c.bottom - glyph.descent - (c.height - glyph.height) / 2 - c.height * 0.1;
+    glyph.draw(g, (int)x, (int)y);
+
+    drawStringInAvatarCorner(g, scene, r, fontSize, color, Integer.toString(r.index), SE_CORNER);
+    if (!r.isAvatarVisible()) {
+      drawStringInAvatarCorner(g, scene, r, fontSize, color, "!v", SW_CORNER);
+    }
+
+    if (r.isDead) {
+      // Draw an X. Tried drawing a skull glyph, but it disappears below
+      // some size threshold on MacOS.
+      g.drawLine(c.left, c.top, c.right, c.bottom);
+      g.drawLine(c.left, c.bottom, c.right, c.top);
+    }
+  }
+
+  private Color withAlpha(final Color c, final int alpha) {
+    return new Color(c.getRed(), c.getGreen(), c.getBlue(), alpha);
+  }
+
+  private void drawArea(final Graphics2D g, final Scene scene, final Region r) {
+    if (isPlayer && !r.isAreaVisible()) {
+      return;
+    }
+
+    final Corners c = corners(r, scene);
+    final Color translucent = withAlpha(r.color, 128);
+    g.setColor(translucent);
+    g.setComposite(AlphaComposite.SrcOver);
+    // TODO: Find a way to indicate visible/invisible.
+    switch (r.shape) {
+      case RECTANGLE:
+        final Polygon p = rotate(c, r.rotation);
+        g.fillPolygon(p);
+        g.setColor(r.color);
+        g.drawPolygon(p);
+        break;
+      case ARC:
+        final Arc2D.Double s = r.arc(c.left, c.top, c.width, c.height);
+        g.fill(s);
+        g.setColor(r.color);
+        g.draw(s);
+    }
+  }
+
+  // The window area that drawing r touches, including outlines.
+  private static Rectangle screenBounds(final Scene scene, final Region r) {
+    final Corners c = corners(r, scene);
+    Rectangle box;
+    if (r.isArea() && r.shape == Region.Shape.RECTANGLE) {
+      box = rotate(c, r.rotation).getBounds();
+    }
+    else if (r.isArea() && r.shape == Region.Shape.ARC) {
+      box = r.arc(c.left, c.top, c.width, c.height).getBounds();
+    }
+    else {
+      box = new Rectangle(c.left, c.top, c.width, c.height);
+    }
+    box.grow(2, 2);
+    return box;
+  }
+
+  // The part of the image shown in the given window area, padded to cover
+  // rounding and outlines.
+  private static Rectangle windowToImageArea(final Scene scene, final Rectangle area) {
+    final Point off = scene.offset;
+    final double invScale = 1.0 / scene.scale;
+    final int left = (int)Math.floor((area.x - off.x) * invScale);
+    final int top = (int)Math.floor((area.y - off.y) * invScale);
+    final int right = (int)Math.ceil((area.x + area.width - off.x) * invScale);
+    final int bottom = (int)Math.ceil((area.y + area.height - off.y) * invScale);
+    final Rectangle imageArea = new Rectangle(left, top, right - left, bottom - top);
+    final int slop = (int)Math.ceil(2 * invScale) + 1;
+    imageArea.grow(slop, slop);
+    return imageArea;
+  }
+
+  // Everything that may be drawn inside the given window area, in order of
+  // creation so that overlapping objects always stack the same way. Objects
+  // being dragged are drawn away from where the index has them, so they are
+  // always included.
+  private static Collection<Region> regionsIn(final Scene scene, final Rectangle area) {
+    final Map<Integer, Region> found = new TreeMap<>();
+    for (final Region r : scene.regions.intersecting(windowToImageArea(scene, area))) {
+      found.put(r.id, r);
+    }
+    if (scene.drag != null) {
+      for (final int id : scene.drag.ids) {
+        final Region r = scene.regions.get(id);
+        if (r != null) {
+          found.put(id, r);
+        }
+      }
+    }
+    return found.values();
+  }
+
+  // Draws the areas and avatars that fall within clip. Everything else is
+  // culled without being looked at.
+  private void drawBaseImage(final Graphics2D g, final Scene scene, final Rectangle clip) {
+    // Draw areas, then dead avatars, then live.
+    final Collection<Region> areas = new ArrayList<>();
+    final Collection<Region> deadAvatars = new ArrayList<>();
+    final Collection<Region> liveAvatars = new ArrayList<>();
+    for (final Region r : regionsIn(scene, clip)) {
+      if (r.isRegion() || !screenBounds(scene, r).intersects(clip)) {
+        continue;
+      }
+      renderStats.drew(r);
+      if (r.isArea()) {
+        areas.add(r);
+      }
+      if (r.isAvatar()) {
+        if (r.isDead) {
+          deadAvatars.add(r);
+        }
+        else {
+          liveAvatars.add(r);
+        }
+      }
+    }
+
+    for (final Region r : areas) {
+      drawArea(g, scene, r);
+    }
+    for (final Region r : deadAvatars) {
+      drawAvatar(g, scene, r);
+    }
+    for (final Region r : liveAvatars) {
+      drawAvatar(g, scene, r);
+    }
+  }
+
+  // Hides/shades areas of the screen that are not being shared. Only the part
+  // of the overlay inside clip is redrawn.
+  //
+  // The overlay never depends on avatars or areas: visible regions are left
+  // transparent and the frame is composed by drawing the overlay over the
+  // post-avatar image, so moving an avatar does not require redrawing it.
+  void drawVisibilityMask(final Scene scene, final Rectangle clip,
+                          final BufferedImage preAvatarImg, final BufferedImage overlay) {
+    final Regions regions = scene.regions;
+    if (visibilityMask == null || !visibilityMask.isCurrent(regions)) {
+      visibilityMask = new VisibilityMask(regions);
+    }
+
+    // Draw into a separate image so we don't over-darken any areas with
+    // overlapping regions.
+    final Graphics2D g = overlay.createGraphics();
+    g.setClip(clip);
+
+    // Black out everything being redrawn.
+    g.setComposite(AlphaComposite.Src);
+    g.setColor(emptyMaskColor);
+    g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+    // Each region replaces the mask under it, in order from hidden to visible.
+    // Only regions in view are considered.
+    for (final VisibilityMask.Entry entry : visibilityMask.getDrawOrder(regionsIn(scene, clip))) {
+      final Corners c = corners(entry.region, scene);
+      if (!clip.intersects(c.left, c.top, c.width, c.height)) {
+        continue;
+      }
+      renderStats.drew(entry.region);
+
+      switch (entry.state) {
+        case VISIBLE:
+          // Make visible regions transparent, for both the DM and the player.
+          g.setComposite(AlphaComposite.Src);
+          g.setColor(CLEAR_MASK_COLOR);
+          g.fillRect(c.left, c.top, c.width, c.height);
+          break;
+        case FOGGED:
+          if (isPlayer) {
+            // Remove avatars from this region for players.
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(preAvatarImg, c.left, c.top, c.right, c.bottom, c.left, c.top, c.right,
+                        c.bottom, null);
+          }
+          // Indicate the region is fogged. Darkens for players.
+          g.setComposite(AlphaComposite.SrcOver);
+          g.setColor(foggedMaskColor);
+          g.fillRect(c.left, c.top, c.width, c.height);
+          break;
+        case HIDDEN:
+          if (isPlayer) {
+            // Players can't see this at all.
+            continue;
+          }
+          // Replace the dark mask over the area.
+          g.setComposite(AlphaComposite.Src);
+          g.setColor(hiddenMaskColor);
+          g.fillRect(c.left, c.top, c.width, c.height);
+          break;
+      }
+    }
+
+    g.dispose();
+  }
+
+  // Turns the scene's damage into the frame areas that need to be recomposed,
+  // and records where the damaged regions are drawn now. Exposed areas, which
+  // are new to the frame, are recomposed whole.
+  private Collection<Damage> collectDamage(final Scene scene, final boolean full,
+                                           final Collection<Rectangle> exposed,
+                                           final Rectangle bounds) {
+    final Collection<Damage> damage = new ArrayList<>();
+    if (full) {
+      drawnBounds.clear();
+    }
+    for (final Rectangle area : exposed) {
+      // Anything out of view has nothing on screen to clean up when it moves.
+      for (final Region r : regionsIn(scene, area)) {
+        drawnBounds.put(r.id, screenBounds(scene, r));
+      }
+      damage.add(new Damage(area, true));
+    }
+    if (full) {
+      return damage;
+    }
+
+    final Collection<Damage> rects = new ArrayList<>();
+    for (final Map.Entry<Integer, Boolean> entry : scene.damage.entrySet()) {
+      final boolean isRegion = entry.getValue();
+      Rectangle rect = drawnBounds.remove(entry.getKey());
+      final Region r = scene.regions.get(entry.getKey());
+      if (r != null) {
+        final Rectangle now = screenBounds(scene, r);
+        drawnBounds.put(r.id, now);
+        if (rect == null) {
+          rect = now;
+        }
+        else if (rect.intersects(now)) {
+          rect = rect.union(now);
+        }
+        else {
+          rects.add(new Damage(now, isRegion));
+        }
+      }
+      if (rect != null) {
+        rects.add(new Damage(rect, isRegion));
+      }
+    }
+
+    if (rects.size() > MAX_DAMAGE_RECTS) {
+      // Too many pieces to be worth handling separately.
+      Rectangle union = null;
+      boolean mask = false;
+      for (final Damage d : rects) {
+        union = (union == null) ? d.rect : union.union(d.rect);
+        mask |= d.mask;
+      }
+      rects.clear();
+      rects.add(new Damage(union, mask));
+    }
+    for (final Damage d : rects) {
+      final Rectangle clipped = d.rect.intersection(bounds);
+      if (!clipped.isEmpty()) {
+        damage.add(new Damage(clipped, d.mask));
+      }
+    }
+    return damage;
+  }
+
+  // Recomposes the part of the frame inside clip from the base image, the
+  // avatars and areas, and the visibility mask. The mask is reused from earlier
+  // frames unless redrawMask is set.
+  private void composeFrame(final Scene scene, final Rectangle clip, final boolean redrawMask,
+                            final BufferedImage preAvatarImg, final BufferedImage postAvatarImg,
+                            final BufferedImage overlay, final BufferedImage frame) {
+    // The post-avatar image has the avatars and areas over the base image.
+    long start = System.nanoTime();
+    {
+      final Graphics2D g = postAvatarImg.createGraphics();
+      g.setClip(clip);
+      g.setComposite(AlphaComposite.Src);
+      g.drawImage(preAvatarImg, null, null);
+      g.setComposite(AlphaComposite.SrcOver);
+      drawBaseImage(g, scene, clip);
+      g.dispose();
+    }
+    renderStats.addTime(RenderStats.Stage.AVATARS, System.nanoTime() - start);
+
+    if (redrawMask) {
+      start = System.nanoTime();
+      drawVisibilityMask(scene, clip, preAvatarImg, overlay);
+      renderStats.addTime(RenderStats.Stage.MASK, System.nanoTime() - start);
+    }
+
+    // Compose the pre/post avatar regions according to visibility.
+    start = System.nanoTime();
+    final Graphics2D g = frame.createGraphics();
+    g.setClip(clip);
+    g.setComposite(AlphaComposite.Src);
+    g.drawImage(postAvatarImg, null, null);
+    g.setComposite(AlphaComposite.SrcOver);
+    g.drawImage(overlay, null, null);
+    g.dispose();
+    renderStats.addTime(RenderStats.Stage.COMPOSE, System.nanoTime() - start);
+  }
+
+  /** Draws the DM's highlights, handles, and status over a composed frame. */
+  public void drawControls(final Graphics2D g, final Scene scene) {
+    if (scene.active != null) {
+      // Highlight the active region or selection box.
+      if (scene.selectionBox) {
+        g.setColor(selectionMaskColor);
+      }
+      else {
+        g.setColor(activeMaskColor);
+      }
+      final Corners c = corners(scene.active, scene);
+      if (scene.active.isArea() && scene.active.shape == Region.Shape.RECTANGLE) {
+        final Polygon p = rotate(c, scene.active.rotation);
+        final Rectangle box = p.getBounds();
+        g.fillRect(box.x, box.y, box.width, box.height);
+      }
+      else {
+        g.fillRect(c.left, c.top, c.width, c.height);
+      }
+    }
+
+    for (final Region r : scene.selection) {
+      if (scene.active != null && r.id == scene.active.id) {
+        drawCorners(g, scene, ACTIVE_SELECTION_COLOR, r);
+      }
+      else {
+        drawCorners(g, scene, SELECTION_COLOR, r);
+      }
+    }
+    if (scene.active != null && !scene.activeSelected) {
+      for (final Region r : scene.siblings) {
+        drawCorners(g, scene, LOCKED_HANDLE_COLOR, r);
+      }
+      drawCorners(g, scene, HANDLE_COLOR, scene.active);
+    }
+
+    if (scene.paused) {
+      // Rotate slowly between red, white, red, black, ...
+      final int t = (int)(System.currentTimeMillis() / 3 % 1024);
+      int red;
+      int gb;
+      if (t < 256) { // 0 - 255
+        // Move from black to red.
+        red = t; // 0-255
+        gb = 0;
+      }
+      else if (t < 512) { // 256 - 511
+        // Move from red to white.
+        red = 255;
+        gb = t - 256; // 0 - 255
+      }
+      else if (t < 768) { // 512 - 768
+        // Move from white to red.
+        red = 255;
+        gb = 255 - (t - 512); // 255 - (0 - 255) = 0 - 255
+      }
+      else { // 768 - 1023
+        // Move from red to black.
+        red = 255 - (t - 768); // 255 - (0 - 255) = 0 - 255
+        gb = 0;
+      }
+
+      g.setColor(new Color(red, gb, gb, 128));
+      g.setFont(new Font(null, 0, 50));
+      g.drawString("PAUSED", 25, 50);
+    }
+  }
+
+  private void drawCorners(final Graphics2D g, final Scene scene, final Color color,
+                           final Region r) {
+    final int hs = HANDLE_SIZE;
+    final int hhs = HANDLE_SIZE / 2;
+
+    final Corners c = corners(r, scene);
+    int left;
+    int top;
+    int right;
+    int bottom;
+    int midX;
+    int midY;
+    if (r.isArea() && r.shape == Region.Shape.RECTANGLE) {
+      final Polygon p = rotate(c, r.rotation);
+      final Rectangle box = p.getBounds();
+      left = box.x;
+      top = box.y;
+      right = box.x + box.width;
+      bottom = box.y + box.height;
+      midX = box.x + box.width / 2;
+      midY = box.y + box.height / 2;
+    }
+    else {
+      left = c.left;
+      top = c.top;
+      right = c.right;
+      bottom = c.bottom;
+      midX = c.midX;
+      midY = c.midY;
+    }
+
+    drawHandle(g, color, left, top); // Upper-left.
+    drawHandle(g, color, right - hs, top); // Upper-right.
+    drawHandle(g, color, left, bottom - hs); // Lower-left.
+    drawHandle(g, color, right - hs, bottom - hs); // Lower-right.
+    drawHandle(g, color, midX - hhs, top); // Top.
+    drawHandle(g, color, midX - hhs, bottom - hs); // Bottom.
+    drawHandle(g, color, left, midY - hhs); // Left.
+    drawHandle(g, color, right - hs, midY - hhs); // Right.
+  }
+
+  private void drawHandle(final Graphics2D g, final Color color, final int x, final int y) {
+    g.setColor(color);
+    g.fillRect(x, y, HANDLE_SIZE, HANDLE_SIZE);
+  }
+}
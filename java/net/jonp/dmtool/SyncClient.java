@@ -0,0 +1,209 @@
+package net.jonp.dmtool;
+
+import java.awt.Point;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+
+import net.jonp.dmtool.dmproto.DMProto;
+
+/**
+ * Shows the player view of a DM's tool running a SyncServer, drawing it locally
+ * from the map tiles and model the server sends. Messages are read on a background
+ * thread and applied on the event dispatch thread, in order, as edits to this
+ * tool's own regions, so only what changed is redrawn.
+ */
+public class SyncClient {
+  private final DMTool dmtool;
+  private final String host;
+  private final int port;
+  private final String token;
+
+  // The server's IDs, to this tool's groups and objects. Only touched on the
+  // event dispatch thread.
+  private final Map<Integer, RegionGroup> groups = new HashMap<>();
+  private final Map<Integer, Region> objects = new HashMap<>();
+
+  // The map the server is showing, as much as has been sent of it. Only
+  // touched on the event dispatch thread.
+  private SyncedImage image;
+
+  /** token is the one the server was started with, or printed when it started. */
+  public SyncClient(final DMTool dmtool, final String host, final int port, final String token) {
+    this.dmtool = dmtool;
+    this.host = host;
+    this.port = port;
+    this.token = token;
+  }
+
+  /** Connects and starts following the server on a background thread. */
+  public void start() {
+    final Thread reader = new Thread(this::follow, "Sync client");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void follow() {
+    try (Socket socket = new Socket(host, port)) {
+      socket.setTcpNoDelay(true);
+      System.err.println("Connected to " + host + ":" + port);
+      final OutputStream out = socket.getOutputStream();
+      DMProto.SyncJoin.newBuilder().setToken(token).build().writeDelimitedTo(out);
+      out.flush();
+      final InputStream in = new BufferedInputStream(socket.getInputStream());
+      while (true) {
+        final DMProto.SyncMessage message = DMProto.SyncMessage.parseDelimitedFrom(in);
+        if (message == null) {
+          break; // The server closed the connection, or refused the token.
+        }
+        SwingUtilities.invokeLater(() -> apply(message));
+      }
+      System.err.println("Disconnected from " + host + ":" + port);
+    }
+    catch (final IOException e) {
+      System.err.println("Lost connection to " + host + ":" + port + ": " + e);
+    }
+  }
+
+  // Applies one message from the server.
+  private void apply(final DMProto.SyncMessage message) {
+    boolean full = false;
+    if (message.getMapWidth() > 0) {
+      image = new SyncedImage(message.getMapWidth(), message.getMapHeight());
+      dmtool.showMap(image);
+      groups.clear();
+      objects.clear();
+      full = true;
+    }
+    if (image != null && message.getTileCount() > 0) {
+      // Only kept here; each is decoded on the builder thread as it is drawn.
+      final ImagePyramid pyramid = dmtool.getPyramid(true);
+      for (final DMProto.SyncTile tile : message.getTileList()) {
+        image.putTile(tile.getLevel(), tile.getRow(), tile.getColumn(),
+                      tile.getPng().toByteArray());
+        if (pyramid != null) {
+          pyramid.refresh(tile.getLevel(), tile.getRow(), tile.getColumn());
+        }
+      }
+      full = true;
+    }
+    final Regions rs = dmtool.editRegions();
+    if (message.getReset() && !full) {
+      rs.clear();
+      groups.clear();
+      objects.clear();
+      full = true;
+    }
+
+    final Collection<Region> changed = new ArrayList<>();
+    for (final DMProto.SyncGroup g : message.getGroupList()) {
+      RegionGroup group = groups.get(g.getId());
+      if (group == null) {
+        group = rs.addGroup();
+        groups.put(g.getId(), group);
+      }
+      final RegionGroup.State state = toState(g.getVisibility());
+      if (group.state != state) {
+        group.state = state;
+        rs.markChanged();
+        changed.addAll(group.getChildren());
+      }
+    }
+
+    for (final DMProto.SyncObject o : message.getObjectList()) {
+      final RegionGroup group = groups.get(o.getGroupId());
+      if (group == null) {
+        System.err.println("Ignoring object " + o.getId() + " in unknown group " + o.getGroupId());
+        continue;
+      }
+      Region r = objects.get(o.getId());
+      if (r != null && r.parent != group) {
+        // Moved to another group; take it out and add it again.
+        rs.removeRegion(r);
+        changed.add(r);
+        r = null;
+      }
+      final boolean added = (r == null);
+      if (added) {
+        r = new Region();
+      }
+      else {
+        // Also where it was, in case it moved.
+        changed.add(r);
+      }
+      switch (o.getObjectCase()) {
+        case REGION:
+          r.load(o.getRegion());
+          break;
+        case AVATAR:
+          r.load(o.getAvatar());
+          break;
+        case AREA:
+          r.load(o.getArea());
+          break;
+        default:
+          continue;
+      }
+      if (added) {
+        rs.add(group, r);
+        objects.put(o.getId(), r);
+        changed.add(r);
+      }
+      else {
+        rs.update(r);
+      }
+    }
+
+    for (final int id : message.getRemovedObjectList()) {
+      final Region r = objects.remove(id);
+      if (r != null) {
+        rs.removeRegion(r);
+        changed.add(r);
+      }
+    }
+    for (final int id : message.getRemovedGroupList()) {
+      groups.remove(id);
+    }
+
+    boolean scrolled = false;
+    if (message.hasCamera()) {
+      final DMProto.Camera camera = message.getCamera();
+      if (camera.getScale() != dmtool.getScale(true)) {
+        dmtool.setScale(camera.getScale());
+        full = true;
+      }
+      dmtool.setOffset(new Point(camera.getOffsetX(), camera.getOffsetY()));
+      scrolled = true;
+    }
+
+    if (full) {
+      dmtool.repaint();
+      return;
+    }
+    if (!changed.isEmpty()) {
+      dmtool.repaint(changed);
+    }
+    if (scrolled) {
+      dmtool.repaintScrolled();
+    }
+  }
+
+  private static RegionGroup.State toState(final DMProto.Group.State state) {
+    switch (state) {
+      case VISIBLE:
+        return RegionGroup.State.VISIBLE;
+      case FOGGED:
+        return RegionGroup.State.FOGGED;
+      default:
+        return RegionGroup.State.HIDDEN;
+    }
+  }
+}
@@ -0,0 +1,607 @@
+package net.jonp.dmtool;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.swing.SwingUtilities;
+
+import com.google.protobuf.ByteString;
+
+import net.jonp.dmtool.dmproto.DMProto;
+
+/**
+ * Sends the player view to SyncClients as the model behind it, rather than as
+ * pixels: the groups, objects, and camera that changed, and the tiles of the
+ * map the players have seen. See SyncMessage in dmtool.proto.
+ *
+ * Players never get any of the map they have not seen, not even to hold
+ * without showing it. A tile is only sent once part of it falls in a region
+ * that is visible or fogged, with everything outside such regions black, and
+ * is sent again whenever more of it is revealed.
+ *
+ * Whenever the DM's tool repaints, what the players can see is worked out again
+ * on the event dispatch thread and compared with what was last sent, and the
+ * difference is queued for every client. Each client has its own writer
+ * thread. A client that falls too far behind has its queue dropped and is sent
+ * everything again, so it can never hold up the others or the DM.
+ *
+ * A client is sent nothing until it has sent the token the server was made
+ * with; see SyncJoin.
+ */
+public class SyncServer {
+  // Updates a client may have queued before it is given up on and resent the
+  // whole view instead.
+  private static final int MAX_QUEUED = 256;
+
+  // Tiles are read for sending a band of rows at a time, taking at most this
+  // many bytes decoded.
+  private static final long MAX_BAND_BYTES = 64L * 1024 * 1024;
+
+  // How long a client has to send its token once connected.
+  private static final int JOIN_TIMEOUT_MS = 10000;
+
+  private final DMTool dmtool;
+  private final ServerSocket serverSocket;
+  private final byte[] token;
+  private final Collection<Client> clients = new CopyOnWriteArrayList<>();
+
+  // Held by a client's writer while it reads and encodes tiles, so each is
+  // encoded once for all of them. Nothing else is held meanwhile.
+  private final Object encodeLock = new Object();
+
+  // What was last sent, by ID. Only touched on the event dispatch thread. A
+  // map is told apart by its pyramid, which is made anew even if the same
+  // image is opened again.
+  private ImagePyramid pyramid;
+  private MapImageSource image;
+  private Regions regions;
+  private long edits = -1;
+  private DMProto.Camera camera;
+  private final Map<Integer, DMProto.SyncGroup> groups = new HashMap<>();
+  private final Map<Integer, DMProto.SyncObject> objects = new HashMap<>();
+  private boolean scheduled = false;
+
+  // The part of the map players have seen, in map pixels, and the latest of
+  // each tile sent for it, by name. Only touched on the event dispatch thread.
+  // revealed is replaced, never changed, as tiles keep the one they were cut
+  // with.
+  private Area revealed = new Area();
+  private final Map<String, SentTile> tiles = new HashMap<>();
+
+  // A tile of one level of the map, with everything outside revealed, which is
+  // in map pixels, black. It is encoded once for every client, the first time
+  // one of them needs it.
+  private static class SentTile {
+    final MapImageSource image;
+    final int level, row, column;
+    final Area revealed;
+
+    // Guarded by encodeLock.
+    DMProto.SyncTile encoded;
+
+    SentTile(final MapImageSource image, final int level, final int row, final int column,
+             final Area revealed) {
+      this.image = image;
+      this.level = level;
+      this.row = row;
+      this.column = column;
+      this.revealed = revealed;
+    }
+  }
+
+  // A message for one client, and the tiles that go with it.
+  private static class Update {
+    final DMProto.SyncMessage message;
+    final Collection<SentTile> tiles;
+
+    Update(final DMProto.SyncMessage message, final Collection<SentTile> tiles) {
+      this.message = message;
+      this.tiles = tiles;
+    }
+  }
+
+  private class Client
+    implements Runnable {
+    final Socket socket;
+
+    // Guarded by this.
+    final ArrayDeque<Update> queue = new ArrayDeque<>();
+
+    Client(final Socket socket) {
+      this.socket = socket;
+    }
+
+    // Queues an update, unless the client is too far behind to catch up.
+    // Returns false if it needs to be sent everything again.
+    synchronized boolean offer(final Update update) {
+      if (queue.size() >= MAX_QUEUED) {
+        return false;
+      }
+      queue.add(update);
+      notifyAll();
+      return true;
+    }
+
+    synchronized void reset(final Update full) {
+      queue.clear();
+      queue.add(full);
+      notifyAll();
+    }
+
+    @Override
+    public void run() {
+      try (Socket s = socket) {
+        if (!join(s)) {
+          System.err.println("Refused player client from " + s.getRemoteSocketAddress() +
+                             ": wrong token");
+          return;
+        }
+        System.err.println("Player client joined from " + s.getRemoteSocketAddress());
+        SwingUtilities.invokeLater(() -> {
+          clients.add(this);
+          reset(fullUpdate());
+        });
+
+        final OutputStream out = new BufferedOutputStream(s.getOutputStream());
+        while (true) {
+          Update update;
+          synchronized (this) {
+            while (queue.isEmpty()) {
+              wait();
+            }
+            update = queue.remove();
+          }
+          // Tiles go before what they show, so a region is never revealed
+          // black; but after the size of a new map, which they belong to.
+          final boolean newMap = update.message.getMapWidth() > 0;
+          if (newMap) {
+            update.message.writeDelimitedTo(out);
+          }
+          for (final DMProto.SyncTile tile : encode(update.tiles)) {
+            DMProto.SyncMessage.newBuilder().addTile(tile).build().writeDelimitedTo(out);
+          }
+          if (!newMap) {
+            update.message.writeDelimitedTo(out);
+          }
+          synchronized (this) {
+            // Send everything queued meanwhile before waiting on the network.
+            if (queue.isEmpty()) {
+              out.flush();
+            }
+          }
+        }
+      }
+      catch (final IOException | InterruptedException e) {
+        // The client went away.
+      }
+      finally {
+        // After it was added, if it ever was.
+        SwingUtilities.invokeLater(() -> clients.remove(this));
+        System.err.println("Player client disconnected from " + socket.getRemoteSocketAddress());
+      }
+    }
+  }
+
+  /**
+   * Starts listening for player clients on the given port of address, or of
+   * every address this computer has if that is null. Only clients that send
+   * token are let in.
+   */
+  public SyncServer(final DMTool dmtool, final String address, final int port,
+                    final String token)
+    throws IOException {
+    this.dmtool = dmtool;
+    this.token = token.getBytes(StandardCharsets.UTF_8);
+    serverSocket = new ServerSocket(port, 0, address == null ? null
+                                                             : InetAddress.getByName(address));
+
+    dmtool.addViewChangeListener(this::schedule);
+    dmtool.addPauseListener(this::schedule);
+    dmtool.addResumeListener(this::schedule);
+    dmtool.addNewMapListener(this::schedule);
+
+    final Thread acceptor = new Thread(this::acceptClients, "Sync server");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    System.err.println("Serving the player view to player clients on " +
+                       serverSocket.getLocalSocketAddress());
+  }
+
+  /** Returns a token hard enough to guess, for when none is given. */
+  public static String newToken() {
+    final byte[] bytes = new byte[12];
+    new SecureRandom().nextBytes(bytes);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  private void acceptClients() {
+    while (true) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+      }
+      catch (final IOException e) {
+        System.err.println("Stopped accepting player clients: " + e);
+        return;
+      }
+      System.err.println("Player client connected from " + socket.getRemoteSocketAddress());
+      // Nothing is sent, or even queued, until the client has sent the token.
+      final Thread writer = new Thread(new Client(socket),
+                                       "Sync client " + socket.getRemoteSocketAddress());
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+
+  // Reads the client's SyncJoin, and returns whether it has the right token.
+  private boolean join(final Socket socket)
+    throws IOException {
+    socket.setSoTimeout(JOIN_TIMEOUT_MS);
+    final DMProto.SyncJoin join =
+      DMProto.SyncJoin.parseDelimitedFrom(new BufferedInputStream(socket.getInputStream(), 1024));
+    socket.setSoTimeout(0);
+    return join != null &&
+           MessageDigest.isEqual(token, join.getToken().getBytes(StandardCharsets.UTF_8));
+  }
+
+  // Returns tiles, encoded. Tiles not encoded yet are read from their map a
+  // band of rows at a time. Any that cannot be read are left out, to be tried
+  // again when next sent; the client shows them black meanwhile.
+  private List<DMProto.SyncTile> encode(final Collection<SentTile> tiles) {
+    synchronized (encodeLock) {
+      final List<SentTile> todo = new ArrayList<>();
+      for (final SentTile tile : tiles) {
+        if (tile.encoded == null) {
+          todo.add(tile);
+        }
+      }
+      todo.sort(Comparator.comparingInt((SentTile t) -> t.level).thenComparingInt((t) -> t.row)
+        .thenComparingInt((t) -> t.column));
+      int i = 0;
+      while (i < todo.size()) {
+        i = encodeBand(todo, i);
+      }
+
+      final List<DMProto.SyncTile> encoded = new ArrayList<>();
+      for (final SentTile tile : tiles) {
+        if (tile.encoded != null) {
+          encoded.add(tile.encoded);
+        }
+      }
+      return encoded;
+    }
+  }
+
+  // Reads and encodes todo from first, as far as the band of rows it starts
+  // fits MAX_BAND_BYTES. todo is sorted by level, then row, then column.
+  // Returns the index of the first tile not in the band. Must hold encodeLock.
+  private static int encodeBand(final List<SentTile> todo, final int first) {
+    final SentTile top = todo.get(first);
+    final Dimension size =
+      ImagePyramid.getLevelSizes(top.image.getWidth(), top.image.getHeight())[top.level];
+    final int bandRows =
+      (int)Math.max(1, MAX_BAND_BYTES / (4L * size.width * ImagePyramid.TILE_SIZE));
+    int end = first;
+    int minColumn = top.column, maxColumn = top.column, maxRow = top.row;
+    while (end < todo.size()) {
+      final SentTile t = todo.get(end);
+      if (t.image != top.image || t.level != top.level || t.row >= top.row + bandRows) {
+        break;
+      }
+      minColumn = Math.min(minColumn, t.column);
+      maxColumn = Math.max(maxColumn, t.column);
+      maxRow = t.row;
+      end++;
+    }
+
+    final Rectangle range =
+      new Rectangle(minColumn, top.row, maxColumn - minColumn + 1, maxRow - top.row + 1);
+    final BufferedImage[][] read;
+    try {
+      read = top.image.readTiles(top.level, range);
+    }
+    catch (final IOException e) {
+      System.err.println("Failed to read tiles " + range + " of level " + top.level +
+                         " for player clients: " + e);
+      return end;
+    }
+    finally {
+      top.image.release();
+    }
+    for (int i = first; i < end; i++) {
+      final SentTile t = todo.get(i);
+      final BufferedImage tile = blackOut(read[t.row - range.y][t.column - range.x], t);
+      t.encoded = DMProto.SyncTile.newBuilder().setLevel(t.level).setRow(t.row)
+        .setColumn(t.column).setPng(ByteString.copyFrom(ParallelPngEncoder.encode(tile))).build();
+    }
+    return end;
+  }
+
+  // Returns img, the pixels of t, with everything outside t.revealed black.
+  private static BufferedImage blackOut(final BufferedImage img, final SentTile t) {
+    // Map pixels to a pixel of the level.
+    final int factor = 1 << t.level;
+    final Rectangle covered = new Rectangle(t.column * ImagePyramid.TILE_SIZE * factor,
+                                            t.row * ImagePyramid.TILE_SIZE * factor,
+                                            img.getWidth() * factor, img.getHeight() * factor);
+    if (t.revealed.contains(covered)) {
+      return img;
+    }
+    final BufferedImage out =
+      new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = out.createGraphics();
+    g.scale(1.0 / factor, 1.0 / factor);
+    g.translate(-covered.x, -covered.y);
+    g.clip(t.revealed);
+    // The clip stays where it is on the tile.
+    g.setTransform(new AffineTransform());
+    g.drawImage(img, 0, 0, null);
+    g.dispose();
+    return out;
+  }
+
+  // Publishes once the current event is done, so a burst of changes goes out
+  // as one update.
+  private void schedule() {
+    if (scheduled) {
+      return;
+    }
+    scheduled = true;
+    SwingUtilities.invokeLater(this::publish);
+  }
+
+  private void publish() {
+    scheduled = false;
+    final DMProto.SyncMessage.Builder delta = DMProto.SyncMessage.newBuilder();
+    final ImagePyramid p = dmtool.getPyramid(true);
+    if (p != pyramid) {
+      // A new map. Everyone starts over with it.
+      pyramid = p;
+      image = dmtool.getImage(true);
+      regions = null;
+      groups.clear();
+      objects.clear();
+      camera = null;
+      revealed = new Area();
+      tiles.clear();
+      delta.setReset(true);
+    }
+
+    final DMProto.Camera c = currentCamera();
+    if (!c.equals(camera)) {
+      camera = c;
+      delta.setCamera(c);
+    }
+
+    final Regions rs = dmtool.getRegions(true);
+    Collection<SentTile> shown = Collections.emptyList();
+    if (rs != regions || dmtool.getEditCount() != edits) {
+      regions = rs;
+      edits = dmtool.getEditCount();
+      diff(rs, delta);
+      shown = reveal(rs);
+    }
+
+    if (delta.getReset()) {
+      sendToAll(fullUpdate());
+      return;
+    }
+    if (delta.hasCamera() || delta.getGroupCount() > 0 || delta.getObjectCount() > 0 ||
+        delta.getRemovedGroupCount() > 0 || delta.getRemovedObjectCount() > 0 ||
+        !shown.isEmpty()) {
+      sendToAll(new Update(delta.build(), shown));
+    }
+  }
+
+  private void sendToAll(final Update update) {
+    for (final Client client : clients) {
+      if (!client.offer(update)) {
+        client.reset(fullUpdate());
+      }
+    }
+  }
+
+  // Everything last sent, for a client that has nothing yet.
+  private Update fullUpdate() {
+    final DMProto.SyncMessage.Builder full = DMProto.SyncMessage.newBuilder();
+    full.setReset(true);
+    if (image != null) {
+      full.setMapWidth(image.getWidth());
+      full.setMapHeight(image.getHeight());
+    }
+    if (camera != null) {
+      full.setCamera(camera);
+    }
+    full.addAllGroup(groups.values());
+    full.addAllObject(objects.values());
+    return new Update(full.build(), new ArrayList<>(tiles.values()));
+  }
+
+  // Adds whatever the players can now see of the map, in the regions of rs that
+  // are visible or fogged, to revealed. Returns the tiles to send for it: every
+  // tile, at every level, that any of it falls in.
+  private Collection<SentTile> reveal(final Regions rs) {
+    if (rs == null || image == null) {
+      return Collections.emptyList();
+    }
+    final Rectangle mapBounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+    Area newly = null;
+    for (final RegionGroup group : rs.getGroups()) {
+      if (group.state == RegionGroup.State.HIDDEN) {
+        continue;
+      }
+      for (final Region r : group.getChildren()) {
+        if (!r.isRegion()) {
+          continue;
+        }
+        final Rectangle seen = r.getBounds().intersection(mapBounds);
+        if (seen.isEmpty() || revealed.contains(seen)) {
+          continue;
+        }
+        if (newly == null) {
+          newly = new Area();
+        }
+        newly.add(new Area(seen));
+      }
+    }
+    if (newly == null) {
+      return Collections.emptyList();
+    }
+    newly.subtract(revealed);
+    if (newly.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final Area grown = new Area(revealed);
+    grown.add(newly);
+    revealed = grown;
+
+    final Collection<SentTile> shown = new ArrayList<>();
+    final Rectangle bounds = newly.getBounds();
+    final int levels = ImagePyramid.getLevelSizes(image.getWidth(), image.getHeight()).length;
+    for (int level = 0; level < levels; level++) {
+      // Map pixels across a tile of this level.
+      final int span = ImagePyramid.TILE_SIZE << level;
+      for (int row = bounds.y / span; row <= (bounds.y + bounds.height - 1) / span; row++) {
+        for (int column = bounds.x / span; column <= (bounds.x + bounds.width - 1) / span;
+             column++) {
+          if (newly.intersects(column * span, row * span, span, span)) {
+            final SentTile tile = new SentTile(image, level, row, column, revealed);
+            tiles.put(level + "/" + row + "_" + column, tile);
+            shown.add(tile);
+          }
+        }
+      }
+    }
+    return shown;
+  }
+
+  private DMProto.Camera currentCamera() {
+    final Point offset = dmtool.getOffset(true);
+    return DMProto.Camera.newBuilder().setScale(dmtool.getScale(true)).setOffsetX(offset.x)
+      .setOffsetY(offset.y).build();
+  }
+
+  // Works out what the players can see of rs, and adds what changed since the
+  // last time to delta.
+  private void diff(final Regions rs, final DMProto.SyncMessage.Builder delta) {
+    final Map<Integer, DMProto.SyncGroup> nowGroups = new HashMap<>();
+    final Map<Integer, DMProto.SyncObject> nowObjects = new HashMap<>();
+    if (rs != null) {
+      for (final RegionGroup group : rs.getGroups()) {
+        for (final Region r : group.getChildren()) {
+          final DMProto.SyncObject object = serializeIfSeen(rs, group, r);
+          if (object == null) {
+            continue;
+          }
+          nowObjects.put(r.id, object);
+          nowGroups.computeIfAbsent(group.id, (id) -> serialize(group));
+        }
+      }
+    }
+
+    for (final Map.Entry<Integer, DMProto.SyncGroup> entry : nowGroups.entrySet()) {
+      if (!entry.getValue().equals(groups.get(entry.getKey()))) {
+        delta.addGroup(entry.getValue());
+      }
+    }
+    for (final Map.Entry<Integer, DMProto.SyncObject> entry : nowObjects.entrySet()) {
+      if (!entry.getValue().equals(objects.get(entry.getKey()))) {
+        delta.addObject(entry.getValue());
+      }
+    }
+    for (final int id : objects.keySet()) {
+      if (!nowObjects.containsKey(id)) {
+        delta.addRemovedObject(id);
+      }
+    }
+    for (final int id : groups.keySet()) {
+      if (!nowGroups.containsKey(id)) {
+        delta.addRemovedGroup(id);
+      }
+    }
+    groups.clear();
+    groups.putAll(nowGroups);
+    objects.clear();
+    objects.putAll(nowObjects);
+  }
+
+  private static DMProto.SyncGroup serialize(final RegionGroup group) {
+    final DMProto.SyncGroup.Builder g = DMProto.SyncGroup.newBuilder().setId(group.id);
+    switch (group.state) {
+      case VISIBLE:
+        g.setVisibility(DMProto.Group.State.VISIBLE);
+        break;
+      case FOGGED:
+        g.setVisibility(DMProto.Group.State.FOGGED);
+        break;
+      default:
+        g.setVisibility(DMProto.Group.State.HIDDEN);
+    }
+    return g.build();
+  }
+
+  // Returns r as it is sent to players, or null if they cannot see it. This
+  // matches what SceneRenderer draws for the player: hidden regions are not
+  // drawn at all, and avatars and areas only show through visible regions.
+  private static DMProto.SyncObject serializeIfSeen(final Regions rs, final RegionGroup group,
+                                                   final Region r) {
+    final DMProto.SyncObject.Builder object =
+      DMProto.SyncObject.newBuilder().setId(r.id).setGroupId(group.id);
+    switch (r.type) {
+      case REGION:
+        if (group.state == RegionGroup.State.HIDDEN) {
+          return null;
+        }
+        return object.setRegion(r.serializeAsRegion()).build();
+      case AVATAR:
+        if (!r.isAvatarVisible() || !isInVisibleRegion(rs, r)) {
+          return null;
+        }
+        return object.setAvatar(r.serializeAsAvatar()).build();
+      case AREA:
+        if (!r.isAreaVisible() || !isInVisibleRegion(rs, r)) {
+          return null;
+        }
+        return object.setArea(r.serializeAsArea()).build();
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isInVisibleRegion(final Regions rs, final Region r) {
+    final Rectangle bounds = r.getBounds();
+    for (final Region other : rs.intersecting(bounds)) {
+      if (other.isRegion() && other.parent != null && other.parent.isVisible() &&
+          other.getBounds().intersects(bounds)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
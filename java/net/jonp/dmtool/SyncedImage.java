@@ -0,0 +1,96 @@
+package net.jonp.dmtool;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The map of a DM's tool followed by a SyncClient, made of the tiles the
+ * server has sent so far, which are kept as PNGs and decoded as they are drawn.
+ * A tile not sent yet, because the players have not seen any of it, is black.
+ */
+public class SyncedImage
+  implements MapImageSource {
+  private final int width, height;
+  private final Dimension[] sizes;
+
+  // Each tile's PNG, by tileName.
+  private final Map<String, byte[]> tiles = new ConcurrentHashMap<>();
+
+  public SyncedImage(final int width, final int height) {
+    this.width = width;
+    this.height = height;
+    sizes = ImagePyramid.getLevelSizes(width, height);
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Replaces a tile with one the server sent. Pyramids already showing the old
+   * one must be refreshed.
+   */
+  public void putTile(final int level, final int row, final int column, final byte[] png) {
+    tiles.put(tileName(level, row, column), png);
+  }
+
+  @Override
+  public BufferedImage[][] readTiles(final int level, final Rectangle range)
+    throws IOException {
+    final BufferedImage[][] read = new BufferedImage[range.height][range.width];
+    for (int row = 0; row < range.height; row++) {
+      for (int column = 0; column < range.width; column++) {
+        read[row][column] = readTile(level, range.y + row, range.x + column);
+      }
+    }
+    return read;
+  }
+
+  private BufferedImage readTile(final int level, final int row, final int column)
+    throws IOException {
+    final byte[] png = tiles.get(tileName(level, row, column));
+    if (png == null) {
+      final Dimension size = sizes[level];
+      final int x = column * ImagePyramid.TILE_SIZE;
+      final int y = row * ImagePyramid.TILE_SIZE;
+      return new BufferedImage(Math.min(ImagePyramid.TILE_SIZE, size.width - x),
+                               Math.min(ImagePyramid.TILE_SIZE, size.height - y),
+                               BufferedImage.TYPE_INT_RGB);
+    }
+    final BufferedImage tile = ImageIO.read(new ByteArrayInputStream(png));
+    if (tile == null) {
+      throw new IOException("Tile " + tileName(level, row, column) + " is not a PNG");
+    }
+    return tile;
+  }
+
+  @Override
+  public void release() {
+  }
+
+  /** Always fails: only the parts the players have seen are here. */
+  @Override
+  public void writeImage(final OutputStream out)
+    throws IOException {
+    throw new IOException("Only the parts of a followed map the players have seen are sent, " +
+                          "so it cannot be saved");
+  }
+
+  private static String tileName(final int level, final int row, final int column) {
+    return level + "/" + row + "_" + column;
+  }
+}
@@ -0,0 +1,130 @@
+package net.jonp.dmtool;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import net.jonp.dmtool.dmproto.DMProto;
+
+/**
+ * The tiles of a map in a save file that has them, read from the file as they
+ * are drawn rather than all at once. See TileIndex in dmtool.proto.
+ *
+ * The file is only held open between the reads of one batch, so it can be
+ * saved over while the map is open.
+ */
+public class TileArchive
+  implements MapImageSource {
+  private final File path;
+  private final String contents;
+  private final DMProto.TileIndex index;
+
+  // Guarded by this.
+  private ZipFile zip;
+
+  public TileArchive(final File path, final String contents, final DMProto.TileIndex index) {
+    this.path = path;
+    this.contents = contents;
+    this.index = index;
+  }
+
+  /** Returns the name of a tile's entry in the save file of the given map. */
+  static String tileName(final String contents, final int level, final int row,
+                         final int column) {
+    return contents + "/tiles/" + level + "/" + row + "_" + column + ".png";
+  }
+
+  /** Returns the name of the map image's entry in the save file of the given map. */
+  static String imageName(final String contents) {
+    return contents + "/map.png";
+  }
+
+  File getPath() {
+    return path;
+  }
+
+  String getContents() {
+    return contents;
+  }
+
+  DMProto.TileIndex getIndex() {
+    return index;
+  }
+
+  @Override
+  public int getWidth() {
+    return index.getLevel(0).getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return index.getLevel(0).getHeight();
+  }
+
+  // Must hold this.
+  private InputStream openEntry(final String name)
+    throws IOException {
+    if (zip == null) {
+      zip = new ZipFile(path);
+    }
+    final ZipEntry entry = zip.getEntry(name);
+    if (entry == null) {
+      throw new IOException("Bad save file: No \"" + name + "\" entry");
+    }
+    return zip.getInputStream(entry);
+  }
+
+  @Override
+  public synchronized BufferedImage[][] readTiles(final int level, final Rectangle range)
+    throws IOException {
+    final BufferedImage[][] tiles = new BufferedImage[range.height][range.width];
+    for (int row = 0; row < range.height; row++) {
+      for (int column = 0; column < range.width; column++) {
+        try (InputStream in = openEntry(tileName(contents, level, range.y + row,
+                                                 range.x + column))) {
+          tiles[row][column] = DMTool.decode(in.readAllBytes());
+        }
+      }
+    }
+    return tiles;
+  }
+
+  /** Writes one tile as it is stored, without decoding it. */
+  synchronized void copyTile(final int level, final int row, final int column,
+                             final OutputStream out)
+    throws IOException {
+    try (InputStream in = openEntry(tileName(contents, level, row, column))) {
+      in.transferTo(out);
+    }
+  }
+
+  @Override
+  public synchronized void writeImage(final OutputStream out)
+    throws IOException {
+    try (InputStream in = openEntry(imageName(contents))) {
+      in.transferTo(out);
+    }
+    finally {
+      release();
+    }
+  }
+
+  @Override
+  public synchronized void release() {
+    if (zip == null) {
+      return;
+    }
+    try {
+      zip.close();
+    }
+    catch (final IOException e) {
+      System.err.println("Failed to close \"" + path + "\": " + e);
+    }
+    zip = null;
+  }
+}
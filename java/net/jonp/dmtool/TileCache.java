@@ -0,0 +1,73 @@
+package net.jonp.dmtool;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Images kept until together they take more than a given number of bytes,
+ * when the least recently used are dropped first. Not thread-safe.
+ */
+public class TileCache<K> {
+  private final long maxBytes;
+  private final LinkedHashMap<K, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+  private long bytes = 0;
+
+  public TileCache(final long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the image for key, or null, counting it as used. */
+  public BufferedImage get(final K key) {
+    return tiles.get(key);
+  }
+
+  public boolean containsKey(final K key) {
+    return tiles.containsKey(key);
+  }
+
+  /** Adds an image, dropping others if that takes the cache over budget. */
+  public void put(final K key, final BufferedImage tile) {
+    final BufferedImage old = tiles.put(key, tile);
+    if (old != null) {
+      bytes -= sizeOf(old);
+    }
+    bytes += sizeOf(tile);
+
+    final Iterator<BufferedImage> it = tiles.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= sizeOf(it.next());
+      it.remove();
+    }
+  }
+
+  /** Drops the image for key, if there is one. */
+  public void remove(final K key) {
+    final BufferedImage old = tiles.remove(key);
+    if (old != null) {
+      bytes -= sizeOf(old);
+    }
+  }
+
+  /** Drops the images of every key that matches. */
+  public void removeIf(final Predicate<K> matches) {
+    final Iterator<Map.Entry<K, BufferedImage>> it = tiles.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<K, BufferedImage> entry = it.next();
+      if (matches.test(entry.getKey())) {
+        bytes -= sizeOf(entry.getValue());
+        it.remove();
+      }
+    }
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  private static long sizeOf(final BufferedImage img) {
+    return 4L * img.getWidth() * img.getHeight();
+  }
+}
@@ -0,0 +1,452 @@
+package net.jonp.dmtool;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.ImageConsumer;
+import java.awt.image.ImageProducer;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Hashtable;
+import java.util.Queue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import net.jonp.dmtool.dmproto.DMProto;
+
+/**
+ * Tiles a map image that is not from a tiled save, into the tiles of every
+ * level its save file holds (see TileIndex in dmtool.proto). Only the full-size
+ * image is read, and only once, a row of tiles at a time from the top; each
+ * smaller level is made by halving the rows of the one above as they are
+ * written. So only about two rows of tiles of each level are held at once.
+ *
+ * Most PNGs and JPEGs are decoded in one pass, by the AWT decoders, which
+ * deliver the rows in order. Others, such as interlaced PNGs and progressive
+ * JPEGs, are read with ImageIO, as many rows at a time as fit MAX_BAND_BYTES;
+ * as each read decodes every row above it as well, they cost a few times as
+ * much.
+ *
+ * Tiles are PNGs, but those of a JPEG are JPEGs, since a PNG of a photograph is
+ * several times its size. Each row of tiles is encoded on every core while the
+ * next is read.
+ */
+class TileWriter {
+  // How much of the image ImageIO may decode at once, when it must be used.
+  private static final long MAX_BAND_BYTES = 64L * 1024 * 1024;
+
+  private static final float JPEG_QUALITY = 0.9f;
+
+  private final ZipOutputStream zip;
+  private final String contents;
+  private final DMProto.TileIndex index;
+  private final DMTool.Progress progress;
+  private final int total;
+  private int written;
+  private boolean jpeg;
+
+  // The next row of each level, and the upper half of it if only that has been
+  // made yet.
+  private final int[] rows;
+  private final BufferedImage[] upper;
+
+  // The tiles being encoded, in the order they are written.
+  private final Queue<Encoding> encoding = new ArrayDeque<>();
+
+  /**
+   * Progress counts tiles: written have been already, out of total in the save.
+   */
+  TileWriter(final ZipOutputStream zip, final String contents, final DMProto.TileIndex index,
+             final DMTool.Progress progress, final int written, final int total) {
+    this.zip = zip;
+    this.contents = contents;
+    this.index = index;
+    this.progress = progress;
+    this.written = written;
+    this.total = total;
+    rows = new int[index.getLevelCount()];
+    upper = new BufferedImage[index.getLevelCount()];
+  }
+
+  /**
+   * Writes every tile of img. Returns how many tiles of the save have been
+   * written once these are.
+   */
+  int write(final MapImageSource img)
+    throws IOException {
+    try {
+      if (img instanceof EncodedImage) {
+        final EncodedImage encoded = (EncodedImage)img;
+        final byte[] bytes = encoded.getBytes();
+        jpeg = encoded.getFormatName().equalsIgnoreCase("jpeg");
+        if ((jpeg && !isSequential(bytes)) || !new RowReader().read(bytes)) {
+          readBands(img);
+        }
+      }
+      else {
+        readBands(img);
+      }
+      writeEncoded(encoding.size());
+      return written;
+    }
+    finally {
+      // Any left were cancelled.
+      for (final Encoding e : encoding) {
+        e.task.cancel(false);
+      }
+      img.release();
+    }
+  }
+
+  // Returns whether a JPEG is sequential, rather than progressive, from its
+  // start of frame marker. The decoder sends a progressive one a pass at a
+  // time, as much as it has read, so it cannot be read a row at a time.
+  private static boolean isSequential(final byte[] jpeg) {
+    int at = 2;
+    while (at + 4 <= jpeg.length && (jpeg[at] & 0xff) == 0xff) {
+      final int marker = jpeg[at + 1] & 0xff;
+      // SOF0 to SOF15, but for DHT, JPG and DAC, which share the range.
+      if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 &&
+          marker != 0xcc) {
+        return (marker == 0xc0 || marker == 0xc1);
+      }
+      at += 2 + (((jpeg[at + 2] & 0xff) << 8) | (jpeg[at + 3] & 0xff));
+    }
+    return false;
+  }
+
+  // Reads the full-size image with ImageIO, a band of rows at a time.
+  private void readBands(final MapImageSource img)
+    throws IOException {
+    final int width = index.getLevel(0).getWidth();
+    final int tileSize = index.getTileSize();
+    final int columns = (width + tileSize - 1) / tileSize;
+    final int count = (index.getLevel(0).getHeight() + tileSize - 1) / tileSize;
+    final int band = (int)Math.max(1, MAX_BAND_BYTES / (4L * width * tileSize));
+    for (int first = 0; first < count; first += band) {
+      final BufferedImage[][] read =
+        img.readTiles(0, new Rectangle(0, first, columns, Math.min(band, count - first)));
+      for (final BufferedImage[] tiles : read) {
+        final BufferedImage row = new BufferedImage(width, tiles[0].getHeight(),
+                                                    tiles[0].getColorModel().hasAlpha()
+                                                      ? BufferedImage.TYPE_INT_ARGB
+                                                      : BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = row.createGraphics();
+        for (int column = 0; column < columns; column++) {
+          g.drawImage(tiles[column], column * tileSize, 0, null);
+        }
+        g.dispose();
+        addRow(0, row);
+      }
+    }
+  }
+
+  // Writes the next row of tiles of a level, full width and a tile high, or
+  // less for the last; then adds its half to the next level. Anything encoded
+  // before is written first, so this row is encoded while the next is read.
+  private void addRow(final int level, final BufferedImage row)
+    throws IOException {
+    final int before = (level == 0 ? encoding.size() : 0);
+    final int tileSize = index.getTileSize();
+    final int r = rows[level]++;
+    for (int column = 0; column * tileSize < row.getWidth(); column++) {
+      final int x = column * tileSize;
+      final int w = Math.min(tileSize, row.getWidth() - x);
+      final int h = row.getHeight();
+      final WritableRaster raster = row.getRaster().createCompatibleWritableRaster(w, h);
+      raster.setDataElements(0, 0, row.getRaster().createChild(x, 0, w, h, 0, 0, null));
+      encoding.add(new Encoding(TileArchive.tileName(contents, level, r, column),
+                                encode(new BufferedImage(row.getColorModel(), raster,
+                                                         row.isAlphaPremultiplied(), null))));
+    }
+
+    final int next = level + 1;
+    if (next < index.getLevelCount()) {
+      final boolean last = (rows[level] * tileSize >= index.getLevel(level).getHeight());
+      final BufferedImage half = ImagePyramid.halve(row);
+      if (upper[next] == null && !last) {
+        upper[next] = half;
+      }
+      else if (upper[next] == null) {
+        addRow(next, half);
+      }
+      else {
+        final BufferedImage both =
+          new BufferedImage(half.getWidth(), upper[next].getHeight() + half.getHeight(),
+                            half.getType());
+        both.getRaster().setDataElements(0, 0, upper[next].getRaster());
+        both.getRaster().setDataElements(0, upper[next].getHeight(), half.getRaster());
+        upper[next] = null;
+        addRow(next, both);
+      }
+    }
+
+    if (level == 0) {
+      writeEncoded(before);
+    }
+  }
+
+  private ForkJoinTask<byte[]> encode(final BufferedImage tile) {
+    if (!jpeg) {
+      return ParallelPngEncoder.task(tile).fork();
+    }
+    return ForkJoinTask.adapt(() -> encodeJpeg(tile)).fork();
+  }
+
+  private static byte[] encodeJpeg(final BufferedImage tile) {
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+      final ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(JPEG_QUALITY);
+      writer.setOutput(stream);
+      writer.write(null, new IIOImage(tile, null, null), param);
+    }
+    catch (final IOException e) {
+      // Only written to memory.
+      throw new UncheckedIOException(e);
+    }
+    finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+
+  // Writes the first count tiles being encoded, as each is done.
+  private void writeEncoded(final int count)
+    throws IOException {
+    for (int i = 0; i < count; i++) {
+      if (progress.isCancelled()) {
+        throw new InterruptedIOException("Cancelled");
+      }
+      final Encoding e = encoding.remove();
+      zip.putNextEntry(new ZipEntry(e.name));
+      zip.write(e.task.join());
+      written++;
+      progress.report((int)(written * 100L / total));
+    }
+  }
+
+  private static class Encoding {
+    final String name;
+    final ForkJoinTask<byte[]> task;
+
+    Encoding(final String name, final ForkJoinTask<byte[]> task) {
+      this.name = name;
+      this.task = task;
+    }
+  }
+
+  /**
+   * Decodes the full-size image in one pass, with the AWT decoders, passing each
+   * row of tiles to addRow as soon as it is complete. The decoder calls back on
+   * a thread of its own, which does all the writing while read waits.
+   */
+  private class RowReader
+    implements ImageConsumer {
+    private final int width = index.getLevel(0).getWidth();
+    private final int height = index.getLevel(0).getHeight();
+    private ImageProducer producer;
+    private BufferedImage row;
+    private int[] pixels;
+    private int next = 0;
+
+    // Guarded by this.
+    private boolean done = false;
+    private boolean unsupported = false;
+    private IOException error;
+
+    /**
+     * Returns false, having read nothing, if the decoders cannot read the
+     * image a row at a time from the top.
+     */
+    boolean read(final byte[] encoded)
+      throws IOException {
+      final Image img = Toolkit.getDefaultToolkit().createImage(encoded);
+      producer = img.getSource();
+      producer.startProduction(this);
+      synchronized (this) {
+        try {
+          while (!done) {
+            wait();
+          }
+        }
+        catch (final InterruptedException e) {
+          producer.removeConsumer(this);
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted");
+        }
+        finally {
+          img.flush();
+        }
+        if (error != null) {
+          throw error;
+        }
+        return !unsupported;
+      }
+    }
+
+    // Stops the decoder, and wakes read.
+    private void finish(final boolean unsupported, final IOException error) {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        done = true;
+        this.unsupported = unsupported;
+        this.error = error;
+        notifyAll();
+      }
+      producer.removeConsumer(this);
+    }
+
+    private synchronized boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public void setDimensions(final int w, final int h) {
+      if (w != width || h != height) {
+        finish(false, new IOException("Image is " + w + "x" + h + ", not " + width + "x" +
+                                      height));
+      }
+    }
+
+    @Override
+    public void setProperties(final Hashtable<?, ?> props) {
+    }
+
+    @Override
+    public void setColorModel(final ColorModel model) {
+    }
+
+    @Override
+    public void setHints(final int hints) {
+      // The JPEG decoder never says it makes a single pass, though it does of
+      // a sequential JPEG; an interlaced PNG is sent a pass at a time.
+      final int inOrder = TOPDOWNLEFTRIGHT | COMPLETESCANLINES | (jpeg ? 0 : SINGLEPASS);
+      if ((hints & inOrder) != inOrder) {
+        finish(true, null);
+      }
+    }
+
+    @Override
+    public void setPixels(final int x, final int y, final int w, final int h,
+                          final ColorModel model, final byte[] data, final int offset,
+                          final int scan) {
+      if (!start(x, y, w, h, model)) {
+        return;
+      }
+      final int tileSize = index.getTileSize();
+      for (int i = 0; i < h; i++) {
+        final int at = ((y + i) % tileSize) * width;
+        for (int j = 0; j < w; j++) {
+          pixels[at + j] = model.getRGB(data[offset + i * scan + j] & 0xff);
+        }
+        rowDone();
+      }
+    }
+
+    @Override
+    public void setPixels(final int x, final int y, final int w, final int h,
+                          final ColorModel model, final int[] data, final int offset,
+                          final int scan) {
+      if (!start(x, y, w, h, model)) {
+        return;
+      }
+      // The usual case, from both decoders, needs no conversion.
+      final boolean same = (model instanceof DirectColorModel &&
+                            ((DirectColorModel)model).getRedMask() == 0xff0000 &&
+                            ((DirectColorModel)model).getGreenMask() == 0xff00 &&
+                            ((DirectColorModel)model).getBlueMask() == 0xff &&
+                            (!model.hasAlpha() ||
+                             ((DirectColorModel)model).getAlphaMask() == 0xff000000));
+      final int tileSize = index.getTileSize();
+      for (int i = 0; i < h; i++) {
+        final int at = ((y + i) % tileSize) * width;
+        if (same) {
+          System.arraycopy(data, offset + i * scan, pixels, at, w);
+        }
+        else {
+          for (int j = 0; j < w; j++) {
+            pixels[at + j] = model.getRGB(data[offset + i * scan + j]);
+          }
+        }
+        rowDone();
+      }
+    }
+
+    // Checks the pixels are the next whole rows, and makes a row of tiles to
+    // hold them if there is none. Returns false if reading has stopped.
+    private boolean start(final int x, final int y, final int w, final int h,
+                          final ColorModel model) {
+      if (isDone()) {
+        return false;
+      }
+      if (x != 0 || w != width || y != next) {
+        finish(false, new IOException("Image was not decoded in order"));
+        return false;
+      }
+      if (row == null) {
+        row = new BufferedImage(width, Math.min(index.getTileSize(), height), model.hasAlpha()
+          ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt)row.getRaster().getDataBuffer()).getData();
+      }
+      return true;
+    }
+
+    // Passes the row of tiles on once its last row has been read.
+    private void rowDone() {
+      next++;
+      final int tileSize = index.getTileSize();
+      if (next % tileSize != 0 && next != height) {
+        return;
+      }
+      try {
+        final int h = (next - 1) % tileSize + 1;
+        addRow(0, (h == row.getHeight() ? row : row.getSubimage(0, 0, width, h)));
+      }
+      catch (final IOException e) {
+        finish(false, e);
+      }
+      catch (final RuntimeException e) {
+        finish(false, new IOException("Cannot tile the image: " + e, e));
+      }
+    }
+
+    @Override
+    public void imageComplete(final int status) {
+      if (status == IMAGEERROR || status == IMAGEABORTED) {
+        if (next == 0) {
+          finish(true, null);
+        }
+        else {
+          finish(false, new IOException("Cannot decode the image"));
+        }
+      }
+      else if (next != height) {
+        finish(false, new IOException("Image ended after " + next + " of " + height + " rows"));
+      }
+      else {
+        finish(false, null);
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package net.jonp.dmtool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The visibility regions of a map, in the order their masks are drawn: hidden
+ * first, then fogged, then visible, so that visibility wins where regions
+ * overlap.
+ *
+ * Region positions are in image coordinates, so the mask does not change with
+ * scrolling or zooming. It is kept between frames and only rebuilt when the
+ * Regions it came from report a change.
+ */
+public class VisibilityMask {
+  public static class Entry {
+    public final Region region;
+    public final RegionGroup.State state;
+
+    Entry(final Region region, final RegionGroup.State state) {
+      this.region = region;
+      this.state = state;
+    }
+  }
+
+  private final Regions regions;
+  private final int revision;
+  private final List<Entry> drawOrder = new ArrayList<>();
+  private final Map<Integer, Integer> positions = new HashMap<>(); // Region ID -> draw order
+
+  public VisibilityMask(final Regions regions) {
+    this.regions = regions;
+    revision = regions.getRevision();
+    for (final RegionGroup group : regions.getGroups()) {
+      for (final Region r : group.getChildren()) {
+        if (r.isRegion()) {
+          drawOrder.add(new Entry(r, group.state));
+        }
+      }
+    }
+    drawOrder.sort((final Entry a, final Entry b) -> rank(a.state) - rank(b.state));
+    for (int i = 0; i < drawOrder.size(); i++) {
+      positions.put(drawOrder.get(i).region.id, i);
+    }
+  }
+
+  private static int rank(final RegionGroup.State state) {
+    switch (state) {
+      case HIDDEN:
+        return 0;
+      case FOGGED:
+        return 1;
+      default:
+        return 2;
+    }
+  }
+
+  /** Returns whether the mask still matches the given regions. */
+  public boolean isCurrent(final Regions rs) {
+    return rs == regions && rs.getRevision() == revision;
+  }
+
+  /**
+   * Returns the entries for the given regions, in draw order. Avatars, areas,
+   * and anything else not in the mask are skipped.
+   */
+  public List<Entry> getDrawOrder(final Collection<Region> subset) {
+    final List<Entry> entries = new ArrayList<>();
+    for (final Region r : subset) {
+      final Integer position = positions.get(r.id);
+      if (position != null && drawOrder.get(position).region == r) {
+        entries.add(drawOrder.get(position));
+      }
+    }
+    entries.sort((final Entry a, final Entry b) -> positions.get(a.region.id) -
+                                                   positions.get(b.region.id));
+    return entries;
+  }
+}
@@ -0,0 +1,23 @@
+package net.jonp.dmtool;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command-line options, always adding the
+ * GC profiler so allocation rates are reported next to ops/s.
+ *
+ * For example, to run only the hit-testing benchmark on large maps:
+ * bazel run //javabench:benchmarks -- HitTest -p imageSize=16384
+ */
+public class BenchmarkMain {
+  public static void main(final String[] args)
+    throws CommandLineOptionException, RunnerException {
+    final CommandLineOptions options = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+  }
+}
@@ -0,0 +1,141 @@
+package net.jonp.dmtool;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Composing whole frames with the SceneRenderer, as the render thread does for
+ * each paint: from scratch after a zoom, shifted after a 25px scroll, and
+ * incrementally after one avatar moves. Also the visibility mask on its own,
+ * over the whole frame.
+ *
+ * The map is fitted to a 1080p frame, so at the larger image sizes every region
+ * and avatar is in view.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CompositionBenchmark {
+  private static final int WIDTH = 1920;
+  private static final int HEIGHT = 1080;
+
+  @Param({"1024", "4096", "16384"})
+  public int imageSize;
+
+  @Param({"100", "1000"})
+  public int regionCount;
+
+  @Param({"20", "200"})
+  public int avatarCount;
+
+  @Param({"true", "false"})
+  public boolean isPlayer;
+
+  private ImagePyramid pyramid;
+  private Regions regions;
+  private final List<Integer> avatars = new ArrayList<>();
+  private int nextAvatar = 0;
+  private int scrollStep = 25;
+
+  private final FrameBufferPool frameBuffers = new FrameBufferPool();
+  private RenderStats renderStats;
+  private SceneRenderer renderer;
+  private BufferedImage frame;
+
+  @Setup
+  public void setUp()
+    throws InterruptedException {
+    pyramid = new ImagePyramid(SyntheticMap.image(imageSize), () -> {
+    });
+    while (pyramid.getLevelsReady() < pyramid.getLevelCount()) {
+      Thread.sleep(10);
+    }
+    regions = SyntheticMap.regions(imageSize, regionCount, avatarCount, 1);
+    for (final Region r : regions.intersecting(new Rectangle(imageSize, imageSize))) {
+      if (r.isAvatar()) {
+        avatars.add(r.id);
+      }
+    }
+
+    renderStats = new RenderStats("benchmark");
+    renderer = new SceneRenderer(isPlayer, frameBuffers, renderStats);
+    frame = frameBuffers.get("frame", WIDTH, HEIGHT);
+    render(scene(true).build()); // Everything after this can be incremental.
+  }
+
+  @TearDown
+  public void tearDown() {
+    pyramid.dispose();
+  }
+
+  private Scene.Builder scene(final boolean full) {
+    return scene(full, 0);
+  }
+
+  private Scene.Builder scene(final boolean full, final int scrolled) {
+    final Scene.Builder scene = new Scene.Builder(isPlayer);
+    scene.pyramid = pyramid;
+    scene.scale = (double)HEIGHT / imageSize;
+    scene.offset = new Point((int)(WIDTH - imageSize * scene.scale) / 2 + scrolled, 0);
+    scene.regions = regions;
+    scene.fullRepaint = full;
+    return scene;
+  }
+
+  private BufferedImage render(final Scene scene) {
+    renderStats.beginFrame();
+    renderer.render(scene, frame);
+    renderStats.endFrame(regions.size());
+    return frame;
+  }
+
+  @Benchmark
+  public BufferedImage fullFrame() {
+    return render(scene(true).build());
+  }
+
+  @Benchmark
+  public BufferedImage scrolled() {
+    // Back and forth, so the view stays on the map.
+    scrollStep = -scrollStep;
+    return render(scene(false, Math.max(0, scrollStep)).build());
+  }
+
+  @Benchmark
+  public BufferedImage avatarMoved() {
+    final Scene.Builder scene = scene(false);
+    if (!avatars.isEmpty()) {
+      scene.damage.put(avatars.get(nextAvatar), false);
+      nextAvatar = (nextAvatar + 1) % avatars.size();
+    }
+    return render(scene.build());
+  }
+
+  @Benchmark
+  public BufferedImage visibilityMask() {
+    final BufferedImage overlay = frameBuffers.get("overlay", WIDTH, HEIGHT);
+    renderer.drawVisibilityMask(scene(true).build(), new Rectangle(WIDTH, HEIGHT),
+                                frameBuffers.get("preAvatar", WIDTH, HEIGHT), overlay);
+    return overlay;
+  }
+}
@@ -0,0 +1,69 @@
+package net.jonp.dmtool;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding what is under the mouse, the same way MapPanel.regionAt does: ask the
+ * index for candidates around the point, in pick order, and take the first that
+ * actually contains it. Runs on every mouse move.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HitTestBenchmark {
+  private static final int POINTS = 1024;
+
+  @Param({"1024", "4096", "16384"})
+  public int imageSize;
+
+  @Param({"100", "1000", "10000"})
+  public int regionCount;
+
+  @Param({"20", "200"})
+  public int avatarCount;
+
+  private Regions regions;
+  private final Point[] points = new Point[POINTS];
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    regions = SyntheticMap.regions(imageSize, regionCount, avatarCount, 1);
+    final Random random = new Random(2);
+    for (int i = 0; i < POINTS; i++) {
+      points[i] = new Point(random.nextInt(imageSize), random.nextInt(imageSize));
+    }
+    regions.candidatesAt(new Rectangle(0, 0, 1, 1)); // Build the index.
+  }
+
+  @Benchmark
+  public Region regionAt() {
+    final Point p = points[next];
+    next = (next + 1) % POINTS;
+    final Rectangle area = new Rectangle(p.x - 2, p.y - 2, 4, 4);
+    for (final Region r : regions.candidatesAt(area)) {
+      if (r.getBounds().contains(p)) {
+        return r;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,104 @@
+package net.jonp.dmtool;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a map as a PNG, with ImageIO on one core and with
+ * ParallelPngEncoder on all of them. 512 is the size of a saved tile.
+ * encodeTiles encodes every tile of the map the way saving does: one after
+ * another with ImageIO, or all forked at once with ParallelPngEncoder. To see
+ * how it scales with cores, run again with
+ * -jvmArgsAppend -XX:ActiveProcessorCount=N.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PngEncoderBenchmark {
+  public static enum Encoder {
+    IMAGEIO,
+    PARALLEL,
+  }
+
+  @Param({"512", "4096"})
+  public int imageSize;
+
+  @Param({"IMAGEIO", "PARALLEL"})
+  public Encoder encoder;
+
+  private BufferedImage image;
+  private final List<BufferedImage> tiles = new ArrayList<>();
+
+  @Setup
+  public void setUp() {
+    image = SyntheticMap.image(imageSize);
+    final int tileSize = ImagePyramid.TILE_SIZE;
+    for (int y = 0; y < imageSize; y += tileSize) {
+      for (int x = 0; x < imageSize; x += tileSize) {
+        tiles.add(image.getSubimage(x, y, Math.min(tileSize, imageSize - x),
+                                    Math.min(tileSize, imageSize - y)));
+      }
+    }
+  }
+
+  @Benchmark
+  public byte[] encode()
+    throws IOException {
+    if (encoder == Encoder.PARALLEL) {
+      return ParallelPngEncoder.encode(image);
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public long encodeTiles() {
+    long bytes = 0;
+    if (encoder == Encoder.PARALLEL) {
+      final List<ForkJoinTask<byte[]>> encoding = new ArrayList<>();
+      for (final BufferedImage tile : tiles) {
+        encoding.add(ParallelPngEncoder.task(tile).fork());
+      }
+      for (final ForkJoinTask<byte[]> task : encoding) {
+        bytes += task.join().length;
+      }
+      return bytes;
+    }
+    try {
+      for (final BufferedImage tile : tiles) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(tile, "png", out);
+        bytes += out.size();
+      }
+    }
+    catch (final IOException e) {
+      // Only written to memory.
+      throw new UncheckedIOException(e);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,88 @@
+package net.jonp.dmtool;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drawing the map image into an offscreen 1080p frame, as every full repaint
+ * does, at full size and zoomed out. FAST is what is drawn while zooming or
+ * scrolling; FINE is measured with its tiles already refined, as when the view
+ * is left alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PyramidBenchmark {
+  private static final int WIDTH = 1920;
+  private static final int HEIGHT = 1080;
+
+  @Param({"1024", "4096", "16384"})
+  public int imageSize;
+
+  @Param({"1.0", "0.3"})
+  public double scale;
+
+  @Param({"FAST", "FINE"})
+  public ImagePyramid.Quality quality;
+
+  private ImagePyramid pyramid;
+  private BufferedImage frame;
+  private Point offset;
+  private final Rectangle clip = new Rectangle(0, 0, WIDTH, HEIGHT);
+
+  @Setup
+  public void setUp()
+    throws InterruptedException {
+    pyramid = new ImagePyramid(SyntheticMap.image(imageSize), () -> {
+    });
+    // Measure the finished pyramid, not the fallback while it builds.
+    while (pyramid.getLevelsReady() < pyramid.getLevelCount()) {
+      Thread.sleep(10);
+    }
+    frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    // Center the map in the frame.
+    offset = new Point((int)(WIDTH - imageSize * scale) / 2, (int)(HEIGHT - imageSize * scale) / 2);
+
+    if (quality == ImagePyramid.Quality.FINE) {
+      // Draw once to queue the tiles in view for refinement, and wait for them.
+      final int revision = pyramid.getRevision();
+      drawBaseImage();
+      final long deadline = System.currentTimeMillis() + 60000;
+      while (pyramid.getRevision() == revision && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    pyramid.dispose();
+  }
+
+  @Benchmark
+  public BufferedImage drawBaseImage() {
+    final Graphics2D g = frame.createGraphics();
+    pyramid.draw(g, offset, scale, clip, quality);
+    g.dispose();
+    return frame;
+  }
+}
@@ -0,0 +1,53 @@
+package net.jonp.dmtool;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying the region model: clone, as used for duplicating, and snapshot, as
+ * taken for the paused player view and for every render after an edit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RegionsBenchmark {
+  @Param({"1024", "4096", "16384"})
+  public int imageSize;
+
+  @Param({"100", "1000", "10000"})
+  public int regionCount;
+
+  @Param({"20", "200"})
+  public int avatarCount;
+
+  private Regions regions;
+
+  @Setup
+  public void setUp() {
+    regions = SyntheticMap.regions(imageSize, regionCount, avatarCount, 1);
+  }
+
+  @Benchmark
+  public Regions cloneRegions() {
+    return regions.clone();
+  }
+
+  @Benchmark
+  public Regions snapshotRegions() {
+    return regions.snapshot();
+  }
+}
@@ -0,0 +1,84 @@
+package net.jonp.dmtool;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Builds maps for the benchmarks: an image with enough detail that scaling it is
+ * not trivially cheap, and randomly placed regions, avatars, and areas.
+ *
+ * The same seed always gives the same map, so runs can be compared.
+ */
+public class SyntheticMap {
+  private static final int CELL_SIZE = 64;
+
+  /** A square battle-map-like image, with a grid of shaded cells. */
+  public static BufferedImage image(final int size) {
+    final BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = img.createGraphics();
+    for (int y = 0; y < size; y += CELL_SIZE) {
+      for (int x = 0; x < size; x += CELL_SIZE) {
+        g.setColor(new Color(((x * 31) ^ (y * 17)) & 0xFFFFFF));
+        g.fillRect(x, y, CELL_SIZE, CELL_SIZE);
+      }
+    }
+    g.setColor(Color.black);
+    for (int i = 0; i < size; i += CELL_SIZE) {
+      g.drawLine(i, 0, i, size);
+      g.drawLine(0, i, size, i);
+    }
+    g.dispose();
+    return img;
+  }
+
+  /**
+   * Regions in groups of up to four, with a random visibility per group, plus
+   * avatars and one area for every ten avatars, all within a square image of the
+   * given size.
+   */
+  public static Regions regions(final int size, final int regionCount, final int avatarCount,
+                                final long seed) {
+    final Random random = new Random(seed);
+    final Regions regions = new Regions();
+    final RegionGroup.State[] states = RegionGroup.State.values();
+
+    int parentID = 0;
+    for (int i = 0; i < regionCount; i++) {
+      final int w = 50 + random.nextInt(Math.max(1, size / 8));
+      final int h = 50 + random.nextInt(Math.max(1, size / 8));
+      final Region r =
+        regions.addRegion(parentID, random.nextInt(size - w), random.nextInt(size - h), w, h);
+      if (parentID == 0) {
+        r.parent.state = states[random.nextInt(states.length)];
+      }
+      parentID = (i % 4 == 3) ? 0 : r.parent.id;
+    }
+
+    for (int i = 0; i < avatarCount; i++) {
+      final Region r =
+        regions.addRegion(0, random.nextInt(size - 40), random.nextInt(size - 40), 40, 40);
+      r.type = Region.Type.AVATAR;
+      r.symbol = (char)('A' + random.nextInt(26));
+      r.index = regions.getNextIndex(r.symbol);
+      r.color = new Color(random.nextInt(0x1000000));
+      r.isDead = random.nextInt(10) == 0;
+      regions.update(r);
+    }
+
+    for (int i = 0; i < avatarCount / 10; i++) {
+      final int w = 100 + random.nextInt(400);
+      final int h = 100 + random.nextInt(400);
+      final Region r =
+        regions.addRegion(0, random.nextInt(size - w), random.nextInt(size - h), w, h);
+      r.type = Region.Type.AREA;
+      r.shape = random.nextBoolean() ? Region.Shape.RECTANGLE : Region.Shape.ARC;
+      r.rotation = random.nextInt(360);
+      r.internalAngle = random.nextBoolean() ? 360 : 46;
+      r.color = new Color(random.nextInt(0x1000000));
+      regions.update(r);
+    }
+    return regions;
+  }
+}
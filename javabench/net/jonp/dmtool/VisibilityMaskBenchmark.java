@@ -0,0 +1,57 @@
+package net.jonp.dmtool;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bookkeeping behind the visibility mask: rebuilding the draw order after
+ * regions change, and finding the regions in view, in draw order, for a frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VisibilityMaskBenchmark {
+  @Param({"1024", "4096", "16384"})
+  public int imageSize;
+
+  @Param({"100", "1000", "10000"})
+  public int regionCount;
+
+  private Regions regions;
+  private VisibilityMask mask;
+  private Rectangle viewport;
+
+  @Setup
+  public void setUp() {
+    regions = SyntheticMap.regions(imageSize, regionCount, 0, 1);
+    mask = new VisibilityMask(regions);
+    // A 1080p window over the middle of the map, at full size.
+    viewport = new Rectangle((imageSize - 1920) / 2, (imageSize - 1080) / 2, 1920, 1080);
+  }
+
+  @Benchmark
+  public VisibilityMask rebuild() {
+    return new VisibilityMask(regions);
+  }
+
+  @Benchmark
+  public List<VisibilityMask.Entry> drawOrderInView() {
+    return mask.getDrawOrder(regions.intersecting(viewport));
+  }
+}